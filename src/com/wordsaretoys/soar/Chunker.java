@@ -0,0 +1,620 @@
+package com.wordsaretoys.soar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+/**
+ * streams an isosurface around a camera in fixed-size chunks
+ * 
+ * chunks near the camera, and ahead of it along its facing
+ * and direction of travel, are marched on background threads
+ * and built into meshes on the GL thread. chunks that are no
+ * longer in range stay resident until the memory budget runs
+ * out, then are evicted least recently used first.
+ * 
+ * set levels above zero to march distant chunks with fewer,
+ * larger cubes. detail halves each time the distance doubles
+ * past the detail radius, so each band of distance holds about
+ * as many triangles as the one before it. the faces of each
+ * chunk are then given skirts: strips hanging back behind the
+ * surface that hide the cracks between neighbors marched at
+ * different levels. a chunk whose level changes is replaced
+ * only when its new meshes are ready.
+ * 
+ * register with Display.addGLObject() to receive updates, and
+ * call draw() from the GL thread with a shader activated.
+ * 
+ * set cache to reuse the meshes of chunks that have been marched
+ * before, in this run of the app or (if it has a directory) an
+ * earlier one. set field to identify the field function and seed.
+ * 
+ * the cube march object's runIndexed() and mesh() methods are
+ * called from the executor's threads. unless its concurrent
+ * flag is set, only one chunk will be marched at a time.
+ * 
+ * @author chris
+ *
+ */
+public class Chunker extends GLObject {
+	
+	// radius of chunks to keep around the camera, in chunks
+	public int radius = 3;
+	
+	// distance to look ahead along the camera's facing
+	public double lookahead = 0;
+	
+	// count of updates of travel to anticipate
+	public double predict = 30;
+	
+	// limit on memory used by resident meshes, in bytes
+	public long budget = 16 * 1024 * 1024;
+	
+	// limit on chunks being marched at once
+	public int queue = 4;
+	
+	// count of coarser levels of detail to use, or 0 for none
+	public int levels = 0;
+	
+	// distance out to which chunks get full detail, in chunks
+	public double detail = 2;
+	
+	// cache to fetch chunk meshes from, or null for none
+	public MeshCache cache = null;
+	
+	// identifies the field function and its seed to the cache
+	public long field = 0;
+	
+	// memory used by resident meshes, in bytes
+	public long bytes = 0;
+	
+	private Camera camera;
+	private CubeMarch march;
+	private ExecutorService executor;
+	
+	private double size;
+	private double step;
+	private int cubes;
+	private double thresh;
+	
+	private LinkedHashMap<Long, Chunk> chunks;
+	private ConcurrentLinkedQueue<Chunk> done;
+	private ArrayList<Chunk> wanted;
+	private int pending;
+	private long frame;
+	
+	private Vector last;
+	private Vector velocity;
+	private Vector ahead;
+	
+	/**
+	 * represents a single chunk of the isosurface
+	 */
+	private static class Chunk {
+		
+		public int x, y, z;
+		public long key;
+		public int lod;
+		public double priority;
+		public long frame;
+		
+		public Future<?> task;
+		
+		// set by whichever comes first, the march starting
+		// or the march being cancelled. a cancelled future
+		// may still run if it had started, so the future
+		// can't tell us which.
+		public AtomicBoolean claimed = new AtomicBoolean();
+		public ArrayList<Mesh> meshes;
+		public boolean resident;
+		public boolean dropped;
+		public long bytes;
+		
+		// chunk being replaced, and chunk replacing this one
+		public Chunk prev;
+		public Chunk next;
+	}
+	
+	/**
+	 * orders chunks by priority, nearest first
+	 */
+	final static private Comparator<Chunk> nearest = new Comparator<Chunk>() {
+		public int compare(Chunk a, Chunk b) {
+			return Double.compare(a.priority, b.priority);
+		}
+	};
+	
+	/**
+	 * constructor
+	 * @param camera camera to stream around
+	 * @param march cube march object to generate chunks with
+	 * @param executor executor to generate chunks on
+	 * @param size length of each chunk
+	 * @param cubes count of cubes along each chunk edge
+	 * @param thresh isosurface threshold
+	 */
+	public Chunker(Camera camera, CubeMarch march, ExecutorService executor, double size, int cubes, double thresh) {
+		this.camera = camera;
+		this.march = march;
+		this.executor = executor;
+		this.size = size;
+		this.cubes = cubes;
+		this.step = size / cubes;
+		this.thresh = thresh;
+		
+		chunks = new LinkedHashMap<Long, Chunk>(64, 0.75f, true);
+		done = new ConcurrentLinkedQueue<Chunk>();
+		wanted = new ArrayList<Chunk>();
+		
+		last = new Vector().copy(camera.position);
+		velocity = new Vector();
+		ahead = new Vector();
+	}
+	
+	/**
+	 * pack chunk coordinates into a single key
+	 * @param x, y, z chunk coordinates
+	 * @return key
+	 */
+	private static long key(int x, int y, int z) {
+		return ((long)(x & 0x1fffff) << 42) | ((long)(y & 0x1fffff) << 21) | (long)(z & 0x1fffff);
+	}
+	
+	/**
+	 * called when the GL context is (re)created
+	 * 
+	 * any existing GL buffers are gone with the old
+	 * context, so all chunks must be generated again.
+	 * marches that have started are left to finish, and
+	 * still count as pending until they're collected.
+	 */
+	public void onInit() {
+		for (Chunk c : chunks.values()) {
+			cancel(c);
+			if (c.next != null) {
+				cancel(c.next);
+			}
+		}
+		chunks.clear();
+		bytes = 0;
+	}
+	
+	/**
+	 * called once per frame on the GL thread
+	 */
+	public void onUpdate() {
+		Vector p = camera.position;
+		
+		// estimate velocity and predict where the camera is headed
+		velocity.copy(p).sub(last);
+		last.copy(p);
+		ahead.copy(camera.front).mul(lookahead).add(p);
+		ahead.x += velocity.x * predict;
+		ahead.y += velocity.y * predict;
+		ahead.z += velocity.z * predict;
+		
+		collect();
+		
+		// touch every chunk in range, and gather the missing ones
+		wanted.clear();
+		request(p);
+		request(ahead);
+		
+		// start marching the missing chunks, nearest first
+		Collections.sort(wanted, nearest);
+		int limit = march.concurrent ? queue : 1;
+		for (int i = 0, il = wanted.size(); i < il && pending < limit; i++) {
+			submit(wanted.get(i));
+		}
+		
+		evict();
+		frame++;
+	}
+	
+	/**
+	 * build meshes for chunks that have finished marching
+	 */
+	private void collect() {
+		Chunk c;
+		while ( (c = done.poll()) != null) {
+			pending--;
+			if (c.dropped) {
+				continue;
+			}
+			if (c.meshes == null) {
+				// the march failed; forget the chunk so it's requested again
+				if (c.prev != null) {
+					c.prev.next = null;
+				} else if (chunks.get(c.key) == c) {
+					chunks.remove(c.key);
+				}
+				continue;
+			}
+			c.bytes = 0;
+			for (Mesh m : c.meshes) {
+				c.bytes += m.length * 4 + m.indexLength * 2;
+				m.build();
+			}
+			c.resident = true;
+			bytes += c.bytes;
+			
+			// swap out the chunk this one replaces
+			if (c.prev != null) {
+				Chunk p = c.prev;
+				release(p);
+				p.dropped = true;
+				c.frame = p.frame;
+				c.prev = null;
+				chunks.put(c.key, c);
+			}
+		}
+	}
+	
+	/**
+	 * touch all chunks within range of a point, and add
+	 * those that don't exist yet, or that are resident at
+	 * the wrong level of detail, to the wanted list
+	 * 
+	 * @param o center of range
+	 */
+	private void request(Vector o) {
+		int cx = (int) Math.floor(o.x / size);
+		int cy = (int) Math.floor(o.y / size);
+		int cz = (int) Math.floor(o.z / size);
+		int r2 = radius * radius;
+		
+		for (int x = cx - radius; x <= cx + radius; x++) {
+			for (int y = cy - radius; y <= cy + radius; y++) {
+				for (int z = cz - radius; z <= cz + radius; z++) {
+					int dx = x - cx, dy = y - cy, dz = z - cz;
+					if (dx * dx + dy * dy + dz * dz > r2) {
+						continue;
+					}
+					long k = key(x, y, z);
+					Chunk p = chunks.get(k);
+					if (p != null) {
+						p.frame = frame;
+						if (!p.resident || p.next != null || p.lod == lod(p)) {
+							continue;
+						}
+					}
+					Chunk c = new Chunk();
+					c.x = x;
+					c.y = y;
+					c.z = z;
+					c.key = k;
+					c.lod = lod(c);
+					c.prev = p;
+					c.priority = priority(c);
+					wanted.add(c);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * find the priority of a chunk
+	 * @param c chunk
+	 * @return distance from chunk center to camera or prediction, whichever is less
+	 */
+	private double priority(Chunk c) {
+		double x = (c.x + 0.5) * size;
+		double y = (c.y + 0.5) * size;
+		double z = (c.z + 0.5) * size;
+		Vector p = camera.position;
+		double d0 = (x - p.x) * (x - p.x) + (y - p.y) * (y - p.y) + (z - p.z) * (z - p.z);
+		double d1 = (x - ahead.x) * (x - ahead.x) + (y - ahead.y) * (y - ahead.y) + (z - ahead.z) * (z - ahead.z);
+		return Math.sqrt(Math.min(d0, d1));
+	}
+	
+	/**
+	 * find the level of detail a chunk should have
+	 * @param c chunk
+	 * @return level, from 0 (full detail) to levels
+	 */
+	private int lod(Chunk c) {
+		double x = (c.x + 0.5) * size - camera.position.x;
+		double y = (c.y + 0.5) * size - camera.position.y;
+		double z = (c.z + 0.5) * size - camera.position.z;
+		double d = Math.sqrt(x * x + y * y + z * z) / size;
+		int l = 0;
+		for (double r = detail; d > r && l < levels && (cubes >> (l + 1)) > 0; r *= 2) {
+			l++;
+		}
+		return l;
+	}
+	
+	/**
+	 * start marching a chunk on the executor
+	 * @param c chunk
+	 */
+	private void submit(final Chunk c) {
+		if (c.prev == null ? chunks.containsKey(c.key) : c.prev.next != null) {
+			// requested around both camera and prediction
+			return;
+		}
+		
+		// march exactly the cubes within the chunk
+		final int n = cubes >> c.lod;
+		final double s = size / n;
+		final Vector start = new Vector(c.x * size, c.y * size, c.z * size);
+		final Vector finish = new Vector(
+				start.x + (n - 0.5) * s,
+				start.y + (n - 0.5) * s,
+				start.z + (n - 0.5) * s);
+		final boolean seams = levels > 0;
+		final MeshCache mc = cache;
+		final long id = field;
+		
+		c.frame = frame;
+		c.task = executor.submit(new Runnable() {
+			public void run() {
+				if (!c.claimed.compareAndSet(false, true)) {
+					// cancelled before it started
+					return;
+				}
+				try {
+					if (mc != null) {
+						c.meshes = mc.runIndexed(march, id, start, finish, s, thresh);
+					} else {
+						c.meshes = march.runIndexed(start, finish, s, thresh);
+					}
+					if (seams) {
+						// neighbors may be up to twice as coarse
+						skirt(c.meshes, start, n, s, 2 * s);
+					}
+				} catch (RuntimeException e) {
+					Log.e("chunker", "can't march chunk " + c.x + ", " + c.y + ", " + c.z + ": " + e);
+					c.meshes = null;
+				} finally {
+					done.add(c);
+				}
+			}
+		});
+		if (c.prev == null) {
+			chunks.put(c.key, c);
+		} else {
+			c.prev.next = c;
+		}
+		pending++;
+	}
+	
+	/**
+	 * add skirts to the meshes of a chunk
+	 * 
+	 * every triangle edge lying on a face of the chunk is
+	 * extruded back behind the surface, against the facing
+	 * of the triangles around it. looking through a crack
+	 * between chunks, the skirt is seen instead of a hole.
+	 * 
+	 * @param meshes meshes of the chunk
+	 * @param start starting corner of the chunk
+	 * @param n count of cubes along each chunk edge
+	 * @param s length of each cube
+	 * @param depth distance to extrude edges by
+	 */
+	private void skirt(ArrayList<Mesh> meshes, Vector start, int n, double s, double depth) {
+		int w = march.normals ? 6 : 3;
+		int i, t, e, a, b;
+		
+		for (int mi = 0, ml = meshes.size(); mi < ml; mi++) {
+			Mesh m = meshes.get(mi);
+			int vl = m.length / w;
+			int il = m.indexLength;
+			
+			// find the faces of the chunk that each vertex lies on
+			int[] face = new int[vl];
+			for (i = 0; i < vl; i++) {
+				face[i] = side(m.data.get(i * w), start.x, start.x + n * s) |
+						(side(m.data.get(i * w + 1), start.y, start.y + n * s) << 2) |
+						(side(m.data.get(i * w + 2), start.z, start.z + n * s) << 4);
+			}
+			
+			// sum the facings of triangles around each boundary vertex
+			float[] dir = new float[vl * 3];
+			int[] bottom = new int[vl];
+			int nb = 0;
+			for (t = 0; t < il; t += 3) {
+				for (e = 0; e < 3; e++) {
+					a = m.indexData.get(t + e) & 0xffff;
+					b = m.indexData.get(t + (e + 1) % 3) & 0xffff;
+					if ( (face[a] & face[b]) == 0) {
+						continue;
+					}
+					int c = m.indexData.get(t + (e + 2) % 3) & 0xffff;
+					float ux = m.data.get(b * w) - m.data.get(a * w);
+					float uy = m.data.get(b * w + 1) - m.data.get(a * w + 1);
+					float uz = m.data.get(b * w + 2) - m.data.get(a * w + 2);
+					float vx = m.data.get(c * w) - m.data.get(a * w);
+					float vy = m.data.get(c * w + 1) - m.data.get(a * w + 1);
+					float vz = m.data.get(c * w + 2) - m.data.get(a * w + 2);
+					float nx = uy * vz - uz * vy;
+					float ny = uz * vx - ux * vz;
+					float nz = ux * vy - uy * vx;
+					if (bottom[a] == 0) {
+						bottom[a] = ++nb;
+					}
+					if (bottom[b] == 0) {
+						bottom[b] = ++nb;
+					}
+					dir[a * 3] += nx;
+					dir[a * 3 + 1] += ny;
+					dir[a * 3 + 2] += nz;
+					dir[b * 3] += nx;
+					dir[b * 3 + 1] += ny;
+					dir[b * 3 + 2] += nz;
+				}
+			}
+			if (nb == 0) {
+				continue;
+			}
+			
+			// extruded vertexes go into the same mesh if there's room for
+			// them; if not, a new mesh gets copies of both edges of the skirt
+			Mesh sm = m;
+			int top = 0;
+			if (vl + nb > Lattice.MAX_VERTEXES) {
+				sm = march.mesh();
+				meshes.add(sm);
+				top = nb;
+			}
+			int base = (sm == m) ? vl - 1 : -1;
+			float[] vert = new float[(top + nb) * w];
+			for (i = 0; i < vl; i++) {
+				if (bottom[i] == 0) {
+					continue;
+				}
+				int j = bottom[i] - 1;
+				double dx = dir[i * 3], dy = dir[i * 3 + 1], dz = dir[i * 3 + 2];
+				double l = Math.sqrt(dx * dx + dy * dy + dz * dz);
+				l = (l > 0) ? depth / l : 0;
+				for (e = 0; e < w; e++) {
+					float f = m.data.get(i * w + e);
+					if (top > 0) {
+						vert[j * w + e] = f;
+					}
+					vert[(top + j) * w + e] = f;
+				}
+				vert[(top + j) * w] -= dx * l;
+				vert[(top + j) * w + 1] -= dy * l;
+				vert[(top + j) * w + 2] -= dz * l;
+			}
+			sm.load(vert);
+			
+			// hang a quad from each boundary edge, wound to continue
+			// the triangle it belongs to
+			for (t = 0; t < il; t += 3) {
+				for (e = 0; e < 3; e++) {
+					a = m.indexData.get(t + e) & 0xffff;
+					b = m.indexData.get(t + (e + 1) % 3) & 0xffff;
+					if ( (face[a] & face[b]) == 0) {
+						continue;
+					}
+					int ta = (top > 0) ? bottom[a] - 1 : a;
+					int tb = (top > 0) ? bottom[b] - 1 : b;
+					int ba = base + top + bottom[a];
+					int bb = base + top + bottom[b];
+					sm.index(tb, ta, ba);
+					sm.index(tb, ba, bb);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * find which face of a chunk a coordinate lies on
+	 * 
+	 * vertexes on a face were interpolated along an edge
+	 * within it, so they match the face coordinate exactly
+	 * 
+	 * @param v coordinate
+	 * @param near coordinate of near face along the axis
+	 * @param far coordinate of far face
+	 * @return 1 for the near face, 2 for the far face, else 0
+	 */
+	private static int side(float v, double near, double far) {
+		if (v == (float) near) {
+			return 1;
+		}
+		if (v == (float) far) {
+			return 2;
+		}
+		return 0;
+	}
+	
+	/**
+	 * drop chunks that have gone out of range
+	 * 
+	 * chunks still being marched are cancelled at once.
+	 * resident chunks are released, least recently used
+	 * first, only while memory use exceeds the budget.
+	 */
+	private void evict() {
+		Iterator<Chunk> it = chunks.values().iterator();
+		while (it.hasNext()) {
+			Chunk c = it.next();
+			if (c.frame == frame) {
+				// the rest are all in range
+				break;
+			}
+			if (!c.resident) {
+				cancel(c);
+				it.remove();
+			} else if (bytes > budget) {
+				release(c);
+				c.dropped = true;
+				it.remove();
+			} else {
+				continue;
+			}
+			
+			// a chunk that's gone takes its replacement with it
+			if (c.next != null) {
+				cancel(c.next);
+			}
+		}
+	}
+	
+	/**
+	 * drop a chunk, and stop its march if it hasn't started
+	 * 
+	 * a march that has started runs to the end, and counts
+	 * as pending until collect() finds it in the done queue
+	 * 
+	 * @param c chunk
+	 */
+	private void cancel(Chunk c) {
+		c.dropped = true;
+		if (c.claimed.compareAndSet(false, true)) {
+			c.task.cancel(false);
+			pending--;
+		}
+	}
+	
+	/**
+	 * release the GL resources of a chunk
+	 * @param c chunk
+	 */
+	private void release(Chunk c) {
+		for (Mesh m : c.meshes) {
+			m.release();
+		}
+		bytes -= c.bytes;
+		c.resident = false;
+	}
+	
+	/**
+	 * release all resident chunks
+	 * must be called from the GL thread
+	 */
+	public void release() {
+		for (Chunk c : chunks.values()) {
+			if (c.resident) {
+				release(c);
+			}
+		}
+		onInit();
+	}
+	
+	/**
+	 * draw all resident chunks
+	 * must be called from the GL thread
+	 */
+	public void draw() {
+		for (Chunk c : chunks.values()) {
+			if (c.resident) {
+				for (Mesh m : c.meshes) {
+					m.draw();
+				}
+			}
+		}
+	}
+}
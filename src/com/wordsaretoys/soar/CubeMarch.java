@@ -1,5 +1,12 @@
 package com.wordsaretoys.soar;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * Java implementation of the marching cubes algorithm
  * ported from http://paulbourke.net/geometry/polygonise and
@@ -7,11 +14,34 @@ package com.wordsaretoys.soar;
  * 
  * to use, create an instance of the class and override
  * the field and build methods with your own functions.
+ * fields that can sample a whole row of points at once
+ * may also override the batch form of field().
+ * 
+ * alternatively, pass a mesh to run() to have triangle
+ * vertexes loaded into it in bulk, or call runIndexed() to
+ * generate indexed meshes directly, in which each vertex is
+ * shared by all triangles that meet at its cube edge.
+ * 
+ * set normals = true to generate a normal for each vertex,
+ * from the gradient of the sampled field. normals are passed
+ * to the six-argument form of build(), or follow each vertex
+ * in generated meshes.
+ * 
+ * runParallel() splits the volume into slabs and marches
+ * them on an executor. build() is still called only from
+ * the calling thread, in the same order as run(), but the
+ * field methods will be called from several threads at once.
+ * they must not modify shared state, and the subclass must
+ * set concurrent = true to declare that it is safe to do so.
+ * 
+ * runSparse() skips blocks of the volume that the surface
+ * cannot pass through. it requires bounds on the field over
+ * a box, from an override of range() or by setting slope.
  *  
  * @author chris
  *
  */
-public class CubeMarch {
+public class CubeMarch extends Lattice {
 
 	final private short edgeTable[] = {	
 		0x0  , 0x109, 0x203, 0x30a, 0x406, 0x50f, 0x605, 0x70c,
@@ -307,12 +337,154 @@ public class CubeMarch {
 		-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1	
 	};
 
-	private Vector vertex[] = {
-			new Vector(), new Vector(), new Vector(), new Vector(),
-			new Vector(), new Vector(), new Vector(), new Vector(),
-			new Vector(), new Vector(), new Vector(), new Vector()
+	/**
+	 * set to true if field() may safely be called from
+	 * several threads at once. runParallel() will fall
+	 * back to a serial run() unless this is set.
+	 */
+	public boolean concurrent = false;
+	
+	/**
+	 * upper bound on the rate of change of the field
+	 * (the magnitude of its gradient) anywhere in the volume.
+	 * if positive, the default range() bounds each block by
+	 * sampling its corners. if zero, no blocks are skipped.
+	 */
+	public double slope = 0;
+	
+	/**
+	 * set to true to generate vertex normals. normals are
+	 * found by central differences on the lattice samples,
+	 * then interpolated along each edge like the vertex.
+	 * they point toward lower field values.
+	 */
+	public boolean normals = false;
+	
+	// count of lattice planes marched by each parallel task
+	final static private int SLAB_PLANES = 16;
+	
+	// count of floats loaded into a mesh at once
+	final static private int BATCH_LENGTH = 3072;
+	
+	// pairs of cube corners joined by each edge, in the
+	// direction that edge is interpolated for build()
+	final static private int edgeCorners[] = {
+		0, 1,  1, 2,  2, 3,  3, 0,
+		4, 5,  5, 6,  6, 7,  7, 4,
+		0, 4,  1, 5,  2, 6,  3, 7
 	};
 	
+	private Sink builder = new Builder();
+	
+	/**
+	 * receives triangle vertexes from a march
+	 */
+	private static abstract class Sink {
+		
+		/**
+		 * add a vertex
+		 * @param v vertex coordinates
+		 * @param n vertex normal, or null if not generated
+		 */
+		public abstract void put(Vector v, Vector n);
+	}
+	
+	/**
+	 * passes triangle vertexes to build()
+	 */
+	private class Builder extends Sink {
+		
+		public void put(Vector v, Vector n) {
+			if (n != null) {
+				build(v.x, v.y, v.z, n.x, n.y, n.z);
+			} else {
+				build(v.x, v.y, v.z);
+			}
+		}
+	}
+	
+	/**
+	 * growable list of vertex coordinates
+	 * holds the output of a single parallel task
+	 */
+	private static class Buffer extends Sink {
+		
+		public double[] data = new double[768];
+		public int length = 0;
+		
+		/**
+		 * add a vertex (and normal) to the buffer
+		 * @param v vertex coordinates
+		 * @param n vertex normal, or null
+		 */
+		public void put(Vector v, Vector n) {
+			if (length + 6 > data.length) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			data[length++] = v.x;
+			data[length++] = v.y;
+			data[length++] = v.z;
+			if (n != null) {
+				data[length++] = n.x;
+				data[length++] = n.y;
+				data[length++] = n.z;
+			}
+		}
+	}
+	
+	/**
+	 * collects triangle vertexes into a fixed batch of
+	 * floats, and loads the batch into a mesh when full
+	 */
+	private static class Batch extends Sink {
+		
+		public float[] data = new float[BATCH_LENGTH];
+		public int length = 0;
+		public Mesh mesh;
+		
+		public Batch(Mesh mesh) {
+			this.mesh = mesh;
+		}
+		
+		/**
+		 * add a vertex (and normal) to the batch
+		 * @param v vertex coordinates
+		 * @param n vertex normal, or null
+		 */
+		public void put(Vector v, Vector n) {
+			if (length + 6 > data.length) {
+				flush();
+			}
+			data[length++] = (float) v.x;
+			data[length++] = (float) v.y;
+			data[length++] = (float) v.z;
+			if (n != null) {
+				data[length++] = (float) n.x;
+				data[length++] = (float) n.y;
+				data[length++] = (float) n.z;
+			}
+		}
+		
+		/**
+		 * load the batch into the mesh and empty it
+		 */
+		public void flush() {
+			mesh.load(data, 0, length);
+			length = 0;
+		}
+	}
+	
+	/**
+	 * state of a single indexed run, with scratch
+	 * space for the vertex being created
+	 */
+	private static class Indexed extends Meshes {
+		
+		public Vector point = new Vector();
+		public Vector normal = new Vector();
+		public float[] vertex = new float[6];
+	}
+	
 	/**
 	 * constructor, does nothing much
 	 */
@@ -320,28 +492,68 @@ public class CubeMarch {
 	}
 	
 	/**
-	 * scalar field function
-	 * called by the algorithm to find field values
-	 * at the vertexes of each cube 
+	 * mesh generation function
+	 * called by the algorithm for each vertex of the isosurface
 	 * 
 	 * override this function in your own code!
 	 * 
-	 * @param x, y, z spatial coordinates 
-	 * @return scalar value at field
+	 * @param x, y, z vertex coordinates 
 	 */
-	public double field(double x, double y, double z) {
-		return 0;
+	public void build(double x, double y, double z) {
 	}
 	
 	/**
-	 * mesh generation function
+	 * mesh generation function with normals
 	 * called by the algorithm for each vertex of the isosurface
+	 * when normals are being generated
 	 * 
-	 * override this function in your own code!
+	 * the default implementation ignores the normal and
+	 * calls build(x, y, z). override this function in your
+	 * own code to use the normals.
 	 * 
-	 * @param x, y, z vertex coordinates 
+	 * @param x, y, z vertex coordinates
+	 * @param nx, ny, nz vertex normal (unit length)
 	 */
-	public void build(double x, double y, double z) {
+	public void build(double x, double y, double z, double nx, double ny, double nz) {
+		build(x, y, z);
+	}
+	
+	/**
+	 * field bounds function
+	 * called by runSparse() to find the range of field values
+	 * within a box. the range may be wider than the true one,
+	 * but must never be narrower, or surface will be lost.
+	 * 
+	 * the default implementation samples the corners of the box
+	 * and widens their range by slope times the distance from
+	 * the center to a corner. override this function if your
+	 * field can provide tighter bounds, e.g. from Field.range().
+	 * 
+	 * @param bounds receives lowest (0) and highest (1) values
+	 * @param x0, y0, z0 lower corner of the box
+	 * @param x1, y1, z1 upper corner of the box
+	 * @return true if bounds were found, false to march the box anyway
+	 */
+	public boolean range(double[] bounds, double x0, double y0, double z0, double x1, double y1, double z1) {
+		if (slope <= 0) {
+			return false;
+		}
+		double lo = Double.MAX_VALUE;
+		double hi = -Double.MAX_VALUE;
+		for (int c = 0; c < 8; c++) {
+			double f = field(
+					(c & 1) == 0 ? x0 : x1, 
+					(c & 2) == 0 ? y0 : y1, 
+					(c & 4) == 0 ? z0 : z1);
+			lo = Math.min(lo, f);
+			hi = Math.max(hi, f);
+		}
+		// every point in the box lies within this distance of a corner
+		double dx = x1 - x0, dy = y1 - y0, dz = z1 - z0;
+		double d = slope * 0.5 * Math.sqrt(dx * dx + dy * dy + dz * dz);
+		bounds[0] = lo - d;
+		bounds[1] = hi + d;
+		return true;
 	}
 	
 	/**
@@ -353,32 +565,125 @@ public class CubeMarch {
 	 * @param fa field strength at A
 	 * @param fb field strength at B
 	 * @param th isosurface threshold
+	 * @return interpolation factor from A to B (0..1)
 	 */
-	private void verp(Vector p, double xa, double ya, double za, double xb, double yb, double zb, double fa, double fb, double th) {
+	private double verp(Vector p, double xa, double ya, double za, double xb, double yb, double zb, double fa, double fb, double th) {
 		// handle edge cases
 		if (Math.abs(th - fa) < 0.00001) {
 			p.x = xa;
 			p.y = ya;
 			p.z = za;
+			return 0;
 		} else if (Math.abs(th - fb) < 0.00001) {
 			p.x = xb;
 			p.y = yb;
 			p.z = zb;
+			return 1;
 		} else if (Math.abs(fa - fb) < 0.00001) {
 			p.x = xa;
 			p.y = ya;
 			p.z = za;
+			return 0;
 		} else {
 			// perform interpolation
 			double mu = (th - fa) / (fb - fa);
 			p.x = xa + mu * (xb - xa);
 			p.y = ya + mu * (yb - ya);
 			p.z = za + mu * (zb - za);
+			return mu;
+		}
+	}
+	
+	/**
+	 * interpolate the normal along a cube edge from the
+	 * field gradients at its corners
+	 * 
+	 * @param n contains normal at exit
+	 * @param g gradients at the corners of the cube
+	 * @param a, b corners at each end of the edge
+	 * @param mu interpolation factor from A to B
+	 */
+	private static void nerp(Vector n, double[] g, int a, int b, double mu) {
+		a *= 3;
+		b *= 3;
+		n.x = -(g[a] + mu * (g[b] - g[a]));
+		n.y = -(g[a + 1] + mu * (g[b + 1] - g[a + 1]));
+		n.z = -(g[a + 2] + mu * (g[b + 2] - g[a + 2]));
+		double l = Math.sqrt(n.x * n.x + n.y * n.y + n.z * n.z);
+		if (l > 0) {
+			n.x /= l;
+			n.y /= l;
+			n.z /= l;
+		}
+	}
+	
+	/**
+	 * find the field gradient at a lattice point by central
+	 * differences (scaled by twice the lattice spacing)
+	 * 
+	 * @param g receives gradient at offset c * 3
+	 * @param c index of cube corner
+	 * @param prev, plane, next lattice planes behind, at, and ahead of point
+	 * @param m index of point within plane
+	 * @param kw length of a plane row
+	 */
+	private static void grad(double[] g, int c, double[] prev, double[] plane, double[] next, int m, int kw) {
+		c *= 3;
+		g[c] = next[m] - prev[m];
+		g[c + 1] = plane[m + kw] - plane[m - kw];
+		g[c + 2] = plane[m + 1] - plane[m - 1];
+	}
+	
+	/**
+	 * find the shared vertex on a cube edge, creating it
+	 * in the current mesh if it hasn't been created yet
+	 * 
+	 * edges are always interpolated from their lower corner,
+	 * so every cube sharing the edge gets the same vertex.
+	 * 
+	 * @param m state of the indexed run
+	 * @param cache edge cache to look up
+	 * @param n slot of the edge within the cache
+	 * @param g gradients at cube corners, or null if no normals
+	 * @param a, b cube corners at lower and upper ends of the edge
+	 * @param xa, ya, za lower corner of the edge
+	 * @param xb, yb, zb upper corner of the edge
+	 * @param fa field strength at lower corner
+	 * @param fb field strength at upper corner
+	 * @param th isosurface threshold
+	 * @return index of vertex within the current mesh
+	 */
+	private int share(Indexed m, int[] cache, int n, double[] g, int a, int b, double xa, double ya, double za, double xb, double yb, double zb, double fa, double fb, double th) {
+		int id = cache[n];
+		if (id < m.base) {
+			Vector p = m.point;
+			double mu = verp(p, xa, ya, za, xb, yb, zb, fa, fb, th);
+			if (g != null) {
+				Vector q = m.normal;
+				nerp(q, g, a, b, mu);
+				float[] v = m.vertex;
+				v[0] = (float) p.x;
+				v[1] = (float) p.y;
+				v[2] = (float) p.z;
+				v[3] = (float) q.x;
+				v[4] = (float) q.y;
+				v[5] = (float) q.z;
+				m.mesh.load(v, 0, 6);
+			} else {
+				m.mesh.set(p.x, p.y, p.z);
+			}
+			id = m.total++;
+			cache[n] = id;
 		}
+		return id - m.base;
 	}
 	
 	/**
 	 * executes the marching cubes algorithm
+	 * 
+	 * the field is sampled once per lattice point. samples
+	 * are cached in two slabs (the planes at x0 and x1),
+	 * which are swapped as the march advances along x.
 	 *  
 	 * @param start starting corner of the cube volume
 	 * @param finish ending corner
@@ -386,26 +691,336 @@ public class CubeMarch {
 	 * @param thresh isosurface threshold
 	 */
 	public void run(Vector start, Vector finish, double step, double thresh) {
+		int il = count(start.x, finish.x, step);
+		int jl = count(start.y, finish.y, step);
+		int kl = count(start.z, finish.z, step);
+		march(start, step, thresh, 0, il, 0, jl, 0, kl, null, builder);
+	}
+	
+	/**
+	 * executes the marching cubes algorithm, loading
+	 * triangle vertexes into a mesh in place of calls
+	 * to build()
+	 * 
+	 * vertexes are collected in a reusable batch of floats
+	 * and loaded into the mesh in bulk, so nothing is
+	 * allocated per vertex beyond growth of the mesh itself.
+	 * each vertex is 3 floats, followed by 3 more for the normal
+	 * if normals are being generated. triangles are not indexed.
+	 * 
+	 * @param start starting corner of the cube volume
+	 * @param finish ending corner
+	 * @param step length of each cube
+	 * @param thresh isosurface threshold
+	 * @param mesh mesh to load vertexes into
+	 */
+	public void run(Vector start, Vector finish, double step, double thresh, Mesh mesh) {
+		int il = count(start.x, finish.x, step);
+		int jl = count(start.y, finish.y, step);
+		int kl = count(start.z, finish.z, step);
+		Batch batch = new Batch(mesh);
+		march(start, step, thresh, 0, il, 0, jl, 0, kl, null, batch);
+		batch.flush();
+	}
+	
+	/**
+	 * executes the marching cubes algorithm on an executor
+	 * 
+	 * the volume is split into slabs of cubes along the x-axis.
+	 * each slab is marched as a separate task into its own buffer,
+	 * and the buffers are passed to build() in slab order on the
+	 * calling thread, so output is identical to that of run().
+	 * slab size does not depend on the executor's thread count.
+	 * 
+	 * if concurrent is not set, this is equivalent to run().
+	 * the normals flag must not be changed while this runs.
+	 * 
+	 * if the calling thread is interrupted, or a task fails,
+	 * the remaining tasks are cancelled and an exception is
+	 * thrown. slabs already passed to build() stay built, so
+	 * the surface is incomplete and should be discarded.
+	 * 
+	 * @param start starting corner of the cube volume
+	 * @param finish ending corner
+	 * @param step length of each cube
+	 * @param thresh isosurface threshold
+	 * @param executor executor to run the tasks on
+	 * @throws RuntimeException if interrupted, with the interrupt
+	 * status set again, or wrapping the cause if a task failed
+	 */
+	public void runParallel(final Vector start, Vector finish, final double step, final double thresh, ExecutorService executor) {
+		if (!concurrent) {
+			run(start, finish, step, thresh);
+			return;
+		}
+
+		final int il = count(start.x, finish.x, step);
+		final int jl = count(start.y, finish.y, step);
+		final int kl = count(start.z, finish.z, step);
+		
+		// submit a task for each slab
+		ArrayList<Future<Buffer>> tasks = new ArrayList<Future<Buffer>>();
+		for (int i = 0; i < il; i += SLAB_PLANES) {
+			final int i0 = i;
+			final int i1 = Math.min(i + SLAB_PLANES, il);
+			tasks.add(executor.submit(new Callable<Buffer>() {
+				public Buffer call() {
+					Buffer out = new Buffer();
+					march(start, step, thresh, i0, i1, 0, jl, 0, kl, null, out);
+					return out;
+				}
+			}));
+		}
+		
+		// pass each slab's vertexes to build() as it completes, in order
+		try {
+			for (int t = 0, tl = tasks.size(); t < tl; t++) {
+				Buffer out = tasks.get(t).get();
+				tasks.set(t, null);
+				double[] d = out.data;
+				if (normals) {
+					for (int i = 0, l = out.length; i < l; i += 6) {
+						build(d[i], d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5]);
+					}
+				} else {
+					for (int i = 0, l = out.length; i < l; i += 3) {
+						build(d[i], d[i + 1], d[i + 2]);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			cancel(tasks);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted before all slabs were built", e);
+		} catch (ExecutionException e) {
+			cancel(tasks);
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * cancel the tasks of a parallel run that haven't been built
+	 * @param tasks tasks, with those already built set to null
+	 */
+	private static void cancel(ArrayList<Future<Buffer>> tasks) {
+		for (Future<Buffer> task : tasks) {
+			if (task != null) {
+				task.cancel(true);
+			}
+		}
+	}
+	
+	/**
+	 * executes the marching cubes algorithm, generating
+	 * indexed meshes in place of calls to build()
+	 * 
+	 * each edge crossing becomes a single vertex shared by
+	 * all of its triangles. vertex ids for the edges of the
+	 * current pair of lattice planes are cached in slabs, as
+	 * with the field samples. when a mesh fills up all of its
+	 * 16-bit indexes, a new one is requested from mesh().
+	 * 
+	 * each vertex is written as 3 floats, so meshes should
+	 * have a stride of 3, or 6 if normals are being generated,
+	 * in which case the normal follows the vertex. if this is
+	 * called from several threads at once, so is mesh().
+	 * 
+	 * @param start starting corner of the cube volume
+	 * @param finish ending corner
+	 * @param step length of each cube
+	 * @param thresh isosurface threshold
+	 * @return list of generated meshes
+	 */
+	public ArrayList<Mesh> runIndexed(Vector start, Vector finish, double step, double thresh) {
+		int il = count(start.x, finish.x, step);
+		int jl = count(start.y, finish.y, step);
+		int kl = count(start.z, finish.z, step);
+		Indexed meshes = new Indexed();
+		march(start, step, thresh, 0, il, 0, jl, 0, kl, meshes, builder);
+		return meshes.list;
+	}
+	
+	/**
+	 * executes the marching cubes algorithm, skipping over
+	 * blocks that the isosurface cannot pass through
+	 * 
+	 * the volume is treated as a tree of nested blocks. each
+	 * block is bounded with range(). blocks whose range lies
+	 * entirely above or below the threshold are skipped with
+	 * all of their children. candidate blocks are split until
+	 * they are no larger than the leaf size, then marched.
+	 * 
+	 * triangles are identical to those of run(), but are passed
+	 * to build() one leaf block at a time, not in plane order.
+	 * 
+	 * @param start starting corner of the cube volume
+	 * @param finish ending corner
+	 * @param step length of each cube
+	 * @param thresh isosurface threshold
+	 * @param leaf size of the smallest blocks, in cubes
+	 */
+	public void runSparse(Vector start, Vector finish, double step, double thresh, int leaf) {
+		int il = count(start.x, finish.x, step);
+		int jl = count(start.y, finish.y, step);
+		int kl = count(start.z, finish.z, step);
+		descend(start, step, thresh, Math.max(leaf, 1), new double[2], 0, il, 0, jl, 0, kl);
+	}
+	
+	/**
+	 * bound a block of the volume, then skip, split, or march it
+	 * 
+	 * @param start starting corner of the cube volume
+	 * @param step length of each cube
+	 * @param thresh isosurface threshold
+	 * @param leaf size of the smallest blocks, in cubes
+	 * @param bounds scratch array for range()
+	 * @param i0, i1 range of cubes in block along x
+	 * @param j0, j1 range of cubes in block along y
+	 * @param k0, k1 range of cubes in block along z
+	 */
+	private void descend(Vector start, double step, double thresh, int leaf, double[] bounds, int i0, int i1, int j0, int j1, int k0, int k1) {
+		if (i1 <= i0 || j1 <= j0 || k1 <= k0)
+			return;
+		
+		// a cube only generates triangles if its corners straddle the threshold
+		boolean bounded = range(bounds, 
+				start.x + i0 * step, start.y + j0 * step, start.z + k0 * step,
+				start.x + i1 * step, start.y + j1 * step, start.z + k1 * step);
+		if (bounded && (bounds[1] < thresh || bounds[0] >= thresh))
+			return;
+		
+		int il = i1 - i0, jl = j1 - j0, kl = k1 - k0;
+		if (il <= leaf && jl <= leaf && kl <= leaf) {
+			march(start, step, thresh, i0, i1, j0, j1, k0, k1, null, builder);
+			return;
+		}
+		
+		// split each axis that's longer than a leaf
+		int im = (il > leaf) ? i0 + il / 2 : i1;
+		int jm = (jl > leaf) ? j0 + jl / 2 : j1;
+		int km = (kl > leaf) ? k0 + kl / 2 : k1;
+		descend(start, step, thresh, leaf, bounds, i0, im, j0, jm, k0, km);
+		descend(start, step, thresh, leaf, bounds, im, i1, j0, jm, k0, km);
+		descend(start, step, thresh, leaf, bounds, i0, im, jm, j1, k0, km);
+		descend(start, step, thresh, leaf, bounds, im, i1, jm, j1, k0, km);
+		descend(start, step, thresh, leaf, bounds, i0, im, j0, jm, km, k1);
+		descend(start, step, thresh, leaf, bounds, im, i1, j0, jm, km, k1);
+		descend(start, step, thresh, leaf, bounds, i0, im, jm, j1, km, k1);
+		descend(start, step, thresh, leaf, bounds, im, i1, jm, j1, km, k1);
+	}
+	
+	/**
+	 * marches a block of cubes through the volume
+	 * 
+	 * all working state is local to the call, or held in
+	 * meshes and out, so calls on different threads don't
+	 * share any. the call does read the normals flag and
+	 * the lookup tables, and calls out to overridable
+	 * methods: the field methods always, mesh() if meshes
+	 * is given, and build() through the builder sink. any
+	 * of these that run on several threads at once must
+	 * be thread-safe, and normals must not change.
+	 * 
+	 * @param start starting corner of the cube volume
+	 * @param step length of each cube
+	 * @param thresh isosurface threshold
+	 * @param i0, i1 range of cubes to march along x
+	 * @param j0, j1 range of cubes to march along y
+	 * @param k0, k1 range of cubes to march along z
+	 * @param meshes state of indexed run, or null
+	 * @param out receives triangle vertexes, if not indexed
+	 */
+	private void march(Vector start, double step, double thresh, int i0, int i1, int j0, int j1, int k0, int k1, Indexed meshes, Sink out) {
 
 		double x0, y0, z0, x1, y1, z1;
-		int i, j, cind;
+		double f0, f1, f2, f3, f4, f5, f6, f7;
+		double[] sm = null, s0, s1, s2 = null, st;
+		double[] g = null, mu = new double[12];
+		int[] ex = null, ey0 = null, ey1 = null, ez0 = null, ez1 = null, et;
+		int[] edge = new int[12];
+		int i, j, k, n, cind, edges;
+		
+		if (i1 <= i0 || j1 <= j0 || k1 <= k0)
+			return;
+		
+		Vector vertex[] = {
+				new Vector(), new Vector(), new Vector(), new Vector(),
+				new Vector(), new Vector(), new Vector(), new Vector(),
+				new Vector(), new Vector(), new Vector(), new Vector()
+		};
+		Vector normal[] = new Vector[12];
+		
+		// normals require a border of extra samples around the
+		// block, and the planes behind and ahead of the cubes
+		int pad = normals ? 1 : 0;
+		
+		// slab row length and size
+		int jl = j1 - j0 + 2 * pad;
+		int kl = k1 - k0 + 2 * pad;
+		int kw = kl + 1;
+		int sl = (jl + 1) * kw;
+		
+		// starting corner of the sampled planes
+		double ys = start.y + (j0 - pad) * step;
+		double zs = start.z + (k0 - pad) * step;
+		
+		s0 = new double[sl];
+		s1 = new double[sl];
+		sample(s0, start.x + i0 * step, ys, zs, step, jl, kl);
+		if (normals) {
+			g = new double[24];
+			for (i = 0; i < 12; i++) {
+				normal[i] = new Vector();
+			}
+			sm = new double[sl];
+			s2 = new double[sl];
+			sample(sm, start.x + (i0 - 1) * step, ys, zs, step, jl, kl);
+			sample(s1, start.x + (i0 + 1) * step, ys, zs, step, jl, kl);
+		}
+		
+		boolean indexed = (meshes != null);
+		if (indexed) {
+			// edge caches for y and z edges in each plane,
+			// and for x edges running between the planes
+			ex = new int[sl];
+			ey0 = new int[sl];
+			ey1 = new int[sl];
+			ez0 = new int[sl];
+			ez1 = new int[sl];
+			Arrays.fill(ey0, -1);
+			Arrays.fill(ez0, -1);
+		}
 		
-		for (x0 = start.x; x0 <= finish.x; x0 = x1) {
-			x1 = x0 + step;
-			for (y0 = start.y; y0 <= finish.y; y0 = y1) {
-				y1 = y0 + step;
-				for (z0 = start.z; z0 <= finish.z; z0 = z1) {
-					z1 = z0 + step;
+		for (i = i0; i < i1; i++) {
+			x0 = start.x + i * step;
+			x1 = start.x + (i + 1) * step;
+			if (normals) {
+				sample(s2, start.x + (i + 2) * step, ys, zs, step, jl, kl);
+			} else {
+				sample(s1, x1, ys, zs, step, jl, kl);
+			}
+			if (indexed) {
+				Arrays.fill(ex, -1);
+				Arrays.fill(ey1, -1);
+				Arrays.fill(ez1, -1);
+			}
 			
+			for (j = j0; j < j1; j++) {
+				y0 = start.y + j * step;
+				y1 = start.y + (j + 1) * step;
+				for (k = k0, n = (j - j0 + pad) * kw + pad; k < k1; k++, n++) {
+					z0 = start.z + k * step;
+					z1 = start.z + (k + 1) * step;
+					
 					// find surface points
-					double f0 = field(x0, y0, z0);
-					double f1 = field(x1, y0, z0);
-					double f2 = field(x1, y0, z1);
-					double f3 = field(x0, y0, z1);
-					double f4 = field(x0, y1, z0);
-					double f5 = field(x1, y1, z0);
-					double f6 = field(x1, y1, z1);
-					double f7 = field(x0, y1, z1);
+					f0 = s0[n];
+					f1 = s1[n];
+					f2 = s1[n + 1];
+					f3 = s0[n + 1];
+					f4 = s0[n + kw];
+					f5 = s1[n + kw];
+					f6 = s1[n + kw + 1];
+					f7 = s0[n + kw + 1];
 			
 					// calculate index into edgetable
 					cind =  (f0 < thresh) ? 1 : 0;
@@ -418,54 +1033,140 @@ public class CubeMarch {
 					cind |= (f7 < thresh) ? 128 : 0;
 
 					// surface does not penetrate cube, no triangles for you
-					if (edgeTable[cind] == 0)
+					edges = edgeTable[cind];
+					if (edges == 0)
 						continue;
+					
+					// find the field gradient at each corner
+					if (normals) {
+						grad(g, 0, sm, s0, s1, n, kw);
+						grad(g, 1, s0, s1, s2, n, kw);
+						grad(g, 2, s0, s1, s2, n + 1, kw);
+						grad(g, 3, sm, s0, s1, n + 1, kw);
+						grad(g, 4, sm, s0, s1, n + kw, kw);
+						grad(g, 5, s0, s1, s2, n + kw, kw);
+						grad(g, 6, s0, s1, s2, n + kw + 1, kw);
+						grad(g, 7, sm, s0, s1, n + kw + 1, kw);
+					}
+					
+					if (indexed) {
+						// start a new mesh if this cube might overflow the current one
+						meshes.reserve(this, 12);
+						
+						// find (or create) the shared vertex for each edge
+						if ( (edges & 1) > 0 ) {
+							edge[0] = share(meshes, ex, n, g, 0, 1, x0, y0, z0, x1, y0, z0, f0, f1, thresh);
+						}
+						if ( (edges & 2) > 0 ) {
+							edge[1] = share(meshes, ez1, n, g, 1, 2, x1, y0, z0, x1, y0, z1, f1, f2, thresh);
+						}
+						if ( (edges & 4) > 0 ) {
+							edge[2] = share(meshes, ex, n + 1, g, 3, 2, x0, y0, z1, x1, y0, z1, f3, f2, thresh);
+						}
+						if ( (edges & 8) > 0 ) {
+							edge[3] = share(meshes, ez0, n, g, 0, 3, x0, y0, z0, x0, y0, z1, f0, f3, thresh);
+						}
+						if ( (edges & 16) > 0) {
+							edge[4] = share(meshes, ex, n + kw, g, 4, 5, x0, y1, z0, x1, y1, z0, f4, f5, thresh);
+						}
+						if ( (edges & 32) > 0) {
+							edge[5] = share(meshes, ez1, n + kw, g, 5, 6, x1, y1, z0, x1, y1, z1, f5, f6, thresh);
+						}
+						if ( (edges & 64) > 0) {
+							edge[6] = share(meshes, ex, n + kw + 1, g, 7, 6, x0, y1, z1, x1, y1, z1, f7, f6, thresh);
+						}
+						if ( (edges & 128) > 0) {
+							edge[7] = share(meshes, ez0, n + kw, g, 4, 7, x0, y1, z0, x0, y1, z1, f4, f7, thresh);
+						}
+						if ( (edges & 256) > 0) {
+							edge[8] = share(meshes, ey0, n, g, 0, 4, x0, y0, z0, x0, y1, z0, f0, f4, thresh);
+						}
+						if ( (edges & 512) > 0) {
+							edge[9] = share(meshes, ey1, n, g, 1, 5, x1, y0, z0, x1, y1, z0, f1, f5, thresh);
+						}
+						if ( (edges & 1024) > 0) {
+							edge[10] = share(meshes, ey1, n + 1, g, 2, 6, x1, y0, z1, x1, y1, z1, f2, f6, thresh);
+						}
+						if ( (edges & 2048) > 0) {
+							edge[11] = share(meshes, ey0, n + 1, g, 3, 7, x0, y0, z1, x0, y1, z1, f3, f7, thresh);
+						}
+						
+						// generate triangle indexes
+						for (int t = 0, u = cind * 16; triTable[u + t] != -1; t += 3) {
+							meshes.mesh.index(edge[triTable[u + t]], edge[triTable[u + t + 1]], edge[triTable[u + t + 2]]);
+						}
+						continue;
+					}
 				
 					// find where the surface intersects the cube
-					if ( (edgeTable[cind] & 1) > 0 ) {
-						verp(vertex[0], x0, y0, z0, x1, y0, z0, f0, f1, thresh);
+					if ( (edges & 1) > 0 ) {
+						mu[0] = verp(vertex[0], x0, y0, z0, x1, y0, z0, f0, f1, thresh);
 					}
-					if ( (edgeTable[cind] & 2) > 0 ) {
-						verp(vertex[1], x1, y0, z0, x1, y0, z1, f1, f2, thresh);
+					if ( (edges & 2) > 0 ) {
+						mu[1] = verp(vertex[1], x1, y0, z0, x1, y0, z1, f1, f2, thresh);
 					}
-					if ( (edgeTable[cind] & 4) > 0 ) {
-						verp(vertex[2], x1, y0, z1, x0, y0, z1, f2, f3, thresh);
+					if ( (edges & 4) > 0 ) {
+						mu[2] = verp(vertex[2], x1, y0, z1, x0, y0, z1, f2, f3, thresh);
 					}
-					if ( (edgeTable[cind] & 8) > 0 ) {
-						verp(vertex[3], x0, y0, z1, x0, y0, z0, f3, f0, thresh);
+					if ( (edges & 8) > 0 ) {
+						mu[3] = verp(vertex[3], x0, y0, z1, x0, y0, z0, f3, f0, thresh);
 					}
-					if ( (edgeTable[cind] & 16) > 0) {
-						verp(vertex[4], x0, y1, z0, x1, y1, z0, f4, f5, thresh);
+					if ( (edges & 16) > 0) {
+						mu[4] = verp(vertex[4], x0, y1, z0, x1, y1, z0, f4, f5, thresh);
 					}
-					if ( (edgeTable[cind] & 32) > 0) {
-						verp(vertex[5], x1, y1, z0, x1, y1, z1, f5, f6, thresh);
+					if ( (edges & 32) > 0) {
+						mu[5] = verp(vertex[5], x1, y1, z0, x1, y1, z1, f5, f6, thresh);
 					}
-					if ( (edgeTable[cind] & 64) > 0) {
-						verp(vertex[6], x1, y1, z1, x0, y1, z1, f6, f7, thresh);
+					if ( (edges & 64) > 0) {
+						mu[6] = verp(vertex[6], x1, y1, z1, x0, y1, z1, f6, f7, thresh);
 					}
-					if ( (edgeTable[cind] & 128) > 0) {
-						verp(vertex[7], x0, y1, z1, x0, y1, z0, f7, f4, thresh);
+					if ( (edges & 128) > 0) {
+						mu[7] = verp(vertex[7], x0, y1, z1, x0, y1, z0, f7, f4, thresh);
 					}
-					if ( (edgeTable[cind] & 256) > 0) {
-						verp(vertex[8], x0, y0, z0, x0, y1, z0, f0, f4, thresh);
+					if ( (edges & 256) > 0) {
+						mu[8] = verp(vertex[8], x0, y0, z0, x0, y1, z0, f0, f4, thresh);
 					}
-					if ( (edgeTable[cind] & 512) > 0) {
-						verp(vertex[9], x1, y0, z0, x1, y1, z0, f1, f5, thresh);
+					if ( (edges & 512) > 0) {
+						mu[9] = verp(vertex[9], x1, y0, z0, x1, y1, z0, f1, f5, thresh);
 					}
-					if ( (edgeTable[cind] & 1024) > 0) {
-						verp(vertex[10], x1, y0, z1, x1, y1, z1, f2, f6, thresh);
+					if ( (edges & 1024) > 0) {
+						mu[10] = verp(vertex[10], x1, y0, z1, x1, y1, z1, f2, f6, thresh);
 					}
-					if ( (edgeTable[cind] & 2048) > 0) {
-						verp(vertex[11], x0, y0, z1, x0, y1, z1, f3, f7, thresh);
+					if ( (edges & 2048) > 0) {
+						mu[11] = verp(vertex[11], x0, y0, z1, x0, y1, z1, f3, f7, thresh);
 					}
 			
 					// generate triangle vertexes
-					for (i = 0, j = cind * 16; triTable[j + i] != -1; i++) {
-						Vector v = vertex[ triTable[j + i] ]; 
-						build(v.x, v.y, v.z);
+					for (int t = 0, u = cind * 16; triTable[u + t] != -1; t++) {
+						int e = triTable[u + t];
+						if (normals) {
+							nerp(normal[e], g, edgeCorners[e * 2], edgeCorners[e * 2 + 1], mu[e]);
+						}
+						out.put(vertex[e], normal[e]);
 					}
 				}
 			}
+			
+			// the far plane becomes the near plane
+			if (normals) {
+				st = sm;
+				sm = s0;
+				s0 = s1;
+				s1 = s2;
+				s2 = st;
+			} else {
+				st = s0;
+				s0 = s1;
+				s1 = st;
+			}
+			if (indexed) {
+				et = ey0;
+				ey0 = ey1;
+				ey1 = et;
+				et = ez0;
+				ez0 = ez1;
+				ez1 = et;
+			}
 		}
 	}
 }
@@ -17,6 +17,9 @@ public class Field extends Space {
 	private double xPeriod;
 	private double yPeriod;
 	private double zPeriod;
+	
+	// offsets of points along each axis
+	private int[] xo, yo, zo;
 
 	/**
 	 * create field
@@ -25,7 +28,18 @@ public class Field extends Space {
 	 * @param xpr, ypr, zpr period
 	 */
 	public Field(int width, int height, int depth, double amp, double xpr, double ypr, double zpr) {
-		super(width * height * depth);
+		this(width, height, depth, amp, xpr, ypr, zpr, DOUBLE);
+	}
+	
+	/**
+	 * create field with a given storage type
+	 * @param width, height, depth dimensions of field
+	 * @param amp amplitude
+	 * @param xpr, ypr, zpr period
+	 * @param type storage type (see Space)
+	 */
+	public Field(int width, int height, int depth, double amp, double xpr, double ypr, double zpr, int type) {
+		super(width * height * depth, type);
 		
 		this.area = width * height;
 		this.width = width;
@@ -35,6 +49,56 @@ public class Field extends Space {
 		this.xPeriod = xpr;
 		this.yPeriod = ypr;
 		this.zPeriod = zpr;
+		this.pow2 = isPowerOfTwo(width) && isPowerOfTwo(height) && isPowerOfTwo(depth);
+		
+		// tiles must fit the field exactly
+		if (width % TILE != 0 || height % TILE != 0 || depth % TILE != 0) {
+			tiled = false;
+		}
+		if (tiled) {
+			int cube = TILE * TILE * TILE;
+			xo = offsets(width, 1, cube);
+			yo = offsets(height, TILE, cube * (width / TILE));
+			zo = offsets(depth, TILE * TILE, cube * (area / (TILE * TILE)));
+		} else {
+			xo = offsets(width, 1, TILE);
+			yo = offsets(height, width, width * TILE);
+			zo = offsets(depth, area, area * TILE);
+		}
+	}
+	
+	/**
+	 * get the amplitude and periods of the field
+	 * @return amplitude, then period along each axis
+	 */
+	double[] params() {
+		return new double[] { amplitude, xPeriod, yPeriod, zPeriod };
+	}
+	
+	/**
+	 * get the kind and dimensions of the field
+	 * @return kind, then width, height and depth
+	 */
+	int[] shape() {
+		return new int[] { FIELD, width, height, depth };
+	}
+	
+	/**
+	 * find where a point is stored
+	 * @param x, y, z coordinates of point (must be in range)
+	 * @return index of point in the bitmap
+	 */
+	public int index(int x, int y, int z) {
+		return xo[x] + yo[y] + zo[z];
+	}
+	
+	/**
+	 * find where a point is stored
+	 * @param i index of point in row order
+	 * @return index of point in the bitmap
+	 */
+	public int index(int i) {
+		return xo[i % width] + yo[(i / width) % height] + zo[i / area];
 	}
 
 	/**
@@ -43,46 +107,233 @@ public class Field extends Space {
 	 * @return value at (x, y, z)
 	 */
 	public double get(double x, double y, double z) {
+		return at(wrap(xPeriod * x, width), wrap(yPeriod * y, height), wrap(zPeriod * z, depth));
+	}
+	
+	/**
+	 * get value at a point already wrapped into the field
+	 * @param xf, yf, zf wrapped coordinates, as from wrap()
+	 * @return value at the point
+	 */
+	double at(double xf, double yf, double zf) {
 
-		double xf = (xPeriod * x) % width;
-		if (xf < 0) {
-			xf += width;
-		}
-		int xi0 = (int) Math.floor(xf);
+		int xi0 = (int) xf;
 		double mux = xf - xi0;
 
-		double yf = (yPeriod * y) % height;
-		if (yf < 0) {
-			yf += height;
-		}
-		int yi0 = (int) Math.floor(yf);
+		int yi0 = (int) yf;
 		double muy = yf - yi0;
 
-		double zf = (zPeriod * z) % depth;
-		if (zf < 0) {
-			zf += depth;
-		}
-		int zi0 = (int) Math.floor(zf);
+		int zi0 = (int) zf;
 		double muz = zf - zi0;
 
-		int xi1 = (xi0 + 1) % width;
-		int yi1 = (yi0 + 1) % height;
-		int zi1 = (zi0 + 1) % depth;
+		int xi1 = next(xi0, width);
+		int yi1 = next(yi0, height);
+		int zi1 = next(zi0, depth);
 		
-		int y0m = yi0 * width;
-		int y1m = yi1 * width;
-		int z0m = zi0 * area;
-		int z1m = zi1 * area;
+		int x0m = xo[xi0];
+		int x1m = xo[xi1];
+		int y0m = yo[yi0];
+		int y1m = yo[yi1];
+		int z0m = zo[zi0];
+		int z1m = zo[zi1];
+
+		double wx = blend(mux);
+		double wy = blend(muy);
+		double wz = blend(muz);
+		
+		return amplitude * sample3(x0m, x1m, y0m + z0m, y0m + z1m, y1m + z0m, y1m + z1m, wx, wy, wz);
+	}
+	
+	/**
+	 * get value and gradient at (x, y, z)
+	 * 
+	 * the gradient is found analytically from the same
+	 * eight points used for the value, which is the same
+	 * value that get() returns
+	 * 
+	 * @param out receives value (0) and partial derivatives
+	 * with respect to x (1), y (2) and z (3)
+	 * @param x, y, z
+	 */
+	public void getWithGradient(double[] out, double x, double y, double z) {
 
-		double i1, i2, i3, i4;
-		i1 = Space.cerp(data[xi0 + y0m + z0m], data[xi0 + y0m + z1m], muz);
-		i2 = Space.cerp(data[xi0 + y1m + z0m], data[xi0 + y1m + z1m], muz);
-		i3 = Space.cerp(i1, i2, muy);
+		double xf = wrap(xPeriod * x, width);
+		int xi0 = (int) xf;
+		double mux = xf - xi0;
 
-		i1 = Space.cerp(data[xi1 + y0m + z0m], data[xi1 + y0m + z1m], muz);
-		i2 = Space.cerp(data[xi1 + y1m + z0m], data[xi1 + y1m + z1m], muz);
-		i4 = Space.cerp(i1, i2, muy);
+		double yf = wrap(yPeriod * y, height);
+		int yi0 = (int) yf;
+		double muy = yf - yi0;
+
+		double zf = wrap(zPeriod * z, depth);
+		int zi0 = (int) zf;
+		double muz = zf - zi0;
+
+		int xi1 = next(xi0, width);
+		int yi1 = next(yi0, height);
+		int zi1 = next(zi0, depth);
+		
+		int x0m = xo[xi0];
+		int x1m = xo[xi1];
+		int y0m = yo[yi0];
+		int y1m = yo[yi1];
+		int z0m = zo[zi0];
+		int z1m = zo[zi1];
+
+		double wx = blend(mux);
+		double wy = blend(muy);
+		double wz = blend(muz);
 		
-		return amplitude * Space.cerp(i3, i4, mux);		
+		// blend along z, then y, then x; each derivative
+		// blends the differences along its own axis
+		gradient3(out, x0m, x1m, y0m + z0m, y0m + z1m, y1m + z0m, y1m + z1m, wx, wy, wz);
+		out[0] = amplitude * out[0];
+		out[1] = amplitude * xPeriod * slope(mux) * out[1];
+		out[2] = amplitude * yPeriod * slope(muy) * out[2];
+		out[3] = amplitude * zPeriod * slope(muz) * out[3];
+	}
+	
+	/**
+	 * get values over a regular grid of points
+	 * 
+	 * out[offset + i + nx * (j + ny * k)] receives the value at
+	 * (x + i * dx, y + j * dy, z + k * dz), the same value get()
+	 * returns. wrapping and blend weights are found once along
+	 * each axis instead of once for every point.
+	 * 
+	 * to fill a row of CubeMarch samples, which run along z,
+	 * pass nx = ny = 1 and the row length as nz.
+	 * 
+	 * @param out receives values
+	 * @param offset index of first value within out
+	 * @param x, y, z first point
+	 * @param dx, dy, dz spacing between points
+	 * @param nx, ny, nz count of points along each axis
+	 */
+	public void get(double[] out, int offset, double x, double y, double z, double dx, double dy, double dz, int nx, int ny, int nz) {
+		Grid g = borrow(nx, ny, nz);
+		axes(g, x, y, z, dx, dy, dz);
+		grid(g, out, offset, false);
+		release(g);
+	}
+	
+	/**
+	 * determine if another field samples the same
+	 * bitmap points with the same weights as this one
+	 * @param f field
+	 * @return true if axes found for one apply to both
+	 */
+	boolean aligned(Field f) {
+		return f.width == width && f.height == height && f.depth == depth && f.tiled == tiled && f.mode == mode &&
+				f.xPeriod == xPeriod && f.yPeriod == yPeriod && f.zPeriod == zPeriod;
+	}
+	
+	/**
+	 * use the offset tables of another field if it has
+	 * the same dimensions and layout, and so the same offsets
+	 * @param f field
+	 * @return true if the tables are now shared
+	 */
+	boolean share(Field f) {
+		if (f.width != width || f.height != height || f.depth != depth || f.tiled != tiled) {
+			return false;
+		}
+		xo = f.xo;
+		yo = f.yo;
+		zo = f.zo;
+		return true;
+	}
+	
+	/**
+	 * find the bitmap points and blend weights of a grid
+	 * @param g grid
+	 * @param x, y, z first point
+	 * @param dx, dy, dz spacing between points
+	 */
+	void axes(Grid g, double x, double y, double z, double dx, double dy, double dz) {
+		axis(g.x0, g.x1, g.wx, x, dx, g.nx, xPeriod, width, xo);
+		axis(g.y0, g.y1, g.wy, y, dy, g.ny, yPeriod, height, yo);
+		axis(g.z0, g.z1, g.wz, z, dz, g.nz, zPeriod, depth, zo);
+	}
+	
+	/**
+	 * get values over a grid whose axes have been found
+	 * @param g grid
+	 * @param out receives values
+	 * @param offset index of first value within out
+	 * @param add true to add values to out, false to replace
+	 */
+	void grid(Grid g, double[] out, int offset, boolean add) {
+		int j, k, n = offset;
+		for (k = 0; k < g.nz; k++) {
+			for (j = 0; j < g.ny; j++, n += g.nx) {
+				row3(out, n, g.nx, g.x0, g.x1, g.wx,
+						g.y0[j] + g.z0[k], g.y0[j] + g.z1[k], g.y1[j] + g.z0[k], g.y1[j] + g.z1[k],
+						g.wy[j], g.wz[k], amplitude, add);
+			}
+		}
+	}
+	
+	/**
+	 * find the range of values within a box
+	 * 
+	 * every value returned by get() for a point in the box
+	 * lies within the range. the range may be wider than
+	 * the true one, as it's found from the raw data cells.
+	 * 
+	 * @param bounds receives lowest (0) and highest (1) values
+	 * @param x0, y0, z0 lower corner of box
+	 * @param x1, y1, z1 upper corner of box
+	 */
+	public void range(double[] bounds, double x0, double y0, double z0, double x1, double y1, double z1) {
+		int[] s = new int[6];
+		span(s, 0, xPeriod * x0, xPeriod * x1, width);
+		span(s, 2, yPeriod * y0, yPeriod * y1, height);
+		span(s, 4, zPeriod * z0, zPeriod * z1, depth);
+		
+		double lo = Double.MAX_VALUE;
+		double hi = -Double.MAX_VALUE;
+		int i, j, k, xi, yi, zi, ym, zm;
+		for (k = 0, zi = s[4]; k < s[5]; k++, zi = (zi + 1) % depth) {
+			zm = zo[zi];
+			for (j = 0, yi = s[2]; j < s[3]; j++, yi = (yi + 1) % height) {
+				ym = yo[yi] + zm;
+				for (i = 0, xi = s[0]; i < s[1]; i++, xi = (xi + 1) % width) {
+					double d = read(xo[xi] + ym);
+					lo = Math.min(lo, d);
+					hi = Math.max(hi, d);
+				}
+			}
+		}
+		
+		// interpolated values are blends of the corner values
+		if (amplitude < 0) {
+			bounds[0] = amplitude * hi;
+			bounds[1] = amplitude * lo;
+		} else {
+			bounds[0] = amplitude * lo;
+			bounds[1] = amplitude * hi;
+		}
+	}
+	
+	/**
+	 * find the data cells that contribute to a range of
+	 * scaled coordinates along one axis
+	 * 
+	 * @param s receives first cell (n) and count of cells (n + 1)
+	 * @param n index into s
+	 * @param a, b ends of the range (period * coordinate)
+	 * @param size size of the axis
+	 */
+	private static void span(int[] s, int n, double a, double b, int size) {
+		long c0 = (long) Math.floor(Math.min(a, b));
+		long c1 = (long) Math.floor(Math.max(a, b)) + 1;
+		if (c1 - c0 + 1 >= size) {
+			s[n] = 0;
+			s[n + 1] = size;
+		} else {
+			s[n] = (int) (((c0 % size) + size) % size);
+			s[n + 1] = (int) (c1 - c0 + 1);
+		}
 	}
 }
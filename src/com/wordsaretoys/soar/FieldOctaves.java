@@ -0,0 +1,153 @@
+package com.wordsaretoys.soar;
+
+import java.util.Arrays;
+
+/**
+ * sums a stack of fields, such as the octaves of
+ * a fractal noise function, in one call
+ * 
+ * each field keeps its own dimensions, periods and
+ * amplitude. the grid form of get() is the fast path:
+ * it finds the wrapping and blend weights along each
+ * axis once per field rather than once per point, and
+ * adds every value into the caller's array in place,
+ * so there are no intermediate arrays to sum.
+ * 
+ * work is shared between fields where it really is
+ * common. fields of the same dimensions and layout
+ * share one set of offset tables. in the point form,
+ * a field of the same dimensions as the field before
+ * it reuses that field's wrapped point if the periods
+ * are equal, or doubles it if they're twice as large,
+ * as octaves of a fractal usually are, rather than
+ * dividing again. in the grid form, a field that
+ * samples the same points as the field before it, i.e.
+ * that shares dimensions, periods, tiling and mode,
+ * reuses its axes outright. either way, values are
+ * the same as summing each field's get().
+ * 
+ * @author chris
+ *
+ */
+public class FieldOctaves {
+	
+	// how each field finds its wrapped point from
+	// the one found by the field before it
+	final static int WRAP = 0;
+	final static int SAME = 1;
+	final static int TWICE = 2;
+	
+	private Field[] fields;
+	private double[] periods;
+	private int[] links;
+	
+	/**
+	 * create a stack of fields
+	 * 
+	 * fields of the same dimensions and layout are made to
+	 * share one set of offset tables, which hold the same
+	 * offsets, so their values are unchanged.
+	 * 
+	 * @param fields fields to sum
+	 */
+	public FieldOctaves(Field... fields) {
+		this.fields = fields;
+		periods = new double[fields.length * 3];
+		links = new int[fields.length];
+		for (int i = 0, il = fields.length; i < il; i++) {
+			Field f = fields[i];
+			System.arraycopy(f.params(), 1, periods, i * 3, 3);
+			if (i > 0) {
+				links[i] = link(fields[i - 1], f, i * 3 - 3);
+			}
+			for (int j = 0; j < i; j++) {
+				if (f.share(fields[j])) {
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * find how a field's wrapped point follows from the
+	 * one found by the field before it
+	 * @param a field before
+	 * @param b field
+	 * @param k index of the periods of field a
+	 * @return WRAP, SAME or TWICE
+	 */
+	private int link(Field a, Field b, int k) {
+		if (a.width != b.width || a.height != b.height || a.depth != b.depth) {
+			return WRAP;
+		}
+		double[] p = periods;
+		if (p[k] == p[k + 3] && p[k + 1] == p[k + 4] && p[k + 2] == p[k + 5]) {
+			return SAME;
+		}
+		if (p[k] > 0 && p[k + 1] > 0 && p[k + 2] > 0 &&
+				2 * p[k] == p[k + 3] && 2 * p[k + 1] == p[k + 4] && 2 * p[k + 2] == p[k + 5]) {
+			return TWICE;
+		}
+		return WRAP;
+	}
+	
+	/**
+	 * get the sum of the fields at (x, y, z)
+	 * @param x, y, z
+	 * @return sum of values at (x, y, z)
+	 */
+	public double get(double x, double y, double z) {
+		// doubling matches wrapping only from zero upward
+		boolean up = x >= 0 && y >= 0 && z >= 0;
+		double xf = 0, yf = 0, zf = 0, v = 0;
+		for (int i = 0, k = 0, il = fields.length; i < il; i++, k += 3) {
+			Field f = fields[i];
+			switch (links[i]) {
+			case SAME:
+				break;
+			case TWICE:
+				if (up) {
+					xf = Space.twice(xf, f.width);
+					yf = Space.twice(yf, f.height);
+					zf = Space.twice(zf, f.depth);
+					break;
+				}
+				// otherwise wrap as usual
+			default:
+				xf = f.wrap(periods[k] * x, f.width);
+				yf = f.wrap(periods[k + 1] * y, f.height);
+				zf = f.wrap(periods[k + 2] * z, f.depth);
+				break;
+			}
+			v += f.at(xf, yf, zf);
+		}
+		return v;
+	}
+	
+	/**
+	 * get the sum of the fields over a regular grid of points
+	 * 
+	 * the layout of out is as for Field.get()
+	 * 
+	 * @param out receives values
+	 * @param offset index of first value within out
+	 * @param x, y, z first point
+	 * @param dx, dy, dz spacing between points
+	 * @param nx, ny, nz count of points along each axis
+	 */
+	public void get(double[] out, int offset, double x, double y, double z, double dx, double dy, double dz, int nx, int ny, int nz) {
+		if (fields.length == 0) {
+			Arrays.fill(out, offset, offset + nx * ny * nz, 0);
+			return;
+		}
+		Space.Grid g = Space.borrow(nx, ny, nz);
+		for (int i = 0, il = fields.length; i < il; i++) {
+			Field f = fields[i];
+			if (i == 0 || !f.aligned(fields[i - 1])) {
+				f.axes(g, x, y, z, dx, dy, dz);
+			}
+			f.grid(g, out, offset, i > 0);
+		}
+		Space.release(g);
+	}
+}
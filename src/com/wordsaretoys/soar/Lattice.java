@@ -0,0 +1,131 @@
+package com.wordsaretoys.soar;
+
+import java.util.ArrayList;
+
+/**
+ * base of the isosurface generators (CubeMarch, SurfaceNet)
+ * 
+ * samples a scalar field over a lattice of cubes, a plane
+ * at a time, and splits indexed output across meshes so
+ * that each can be addressed with 16-bit indexes.
+ * 
+ * @author chris
+ *
+ */
+abstract class Lattice {
+	
+	// largest vertex count addressable by a 16-bit index
+	final static int MAX_VERTEXES = 65536;
+	
+	/**
+	 * state of a single indexed run
+	 * holds the meshes generated so far
+	 */
+	static class Meshes {
+		
+		public ArrayList<Mesh> list = new ArrayList<Mesh>();
+		public Mesh mesh;
+		
+		// vertex ids are issued from total; those below base
+		// belong to meshes that have already been filled
+		public int base;
+		public int total;
+		
+		/**
+		 * make room in the current mesh for more vertexes,
+		 * starting a new mesh if they might overflow it
+		 * 
+		 * vertex ids issued before a new mesh is started
+		 * fall below base, so their vertexes are created
+		 * again in the new mesh as they're referred to.
+		 * 
+		 * @param lattice generator to request meshes from
+		 * @param count most vertexes that may be added
+		 */
+		public void reserve(Lattice lattice, int count) {
+			if (mesh == null || total - base + count > MAX_VERTEXES) {
+				mesh = lattice.mesh();
+				list.add(mesh);
+				base = total;
+			}
+		}
+	}
+	
+	/**
+	 * scalar field function
+	 * called by the algorithm to find field values
+	 * at the vertexes of each cube
+	 * 
+	 * override this function in your own code!
+	 * 
+	 * @param x, y, z spatial coordinates
+	 * @return scalar value at field
+	 */
+	public double field(double x, double y, double z) {
+		return 0;
+	}
+	
+	/**
+	 * batch scalar field function
+	 * called by the algorithm to find field values along
+	 * a row of lattice points parallel to the z-axis
+	 * 
+	 * the default implementation calls field(x, y, z) for
+	 * each point. override this function if your field can
+	 * sample a whole row faster than one point at a time.
+	 * 
+	 * @param row receives field values
+	 * @param offset index of first value within row
+	 * @param count count of points in the row
+	 * @param x, y, z spatial coordinates of first point
+	 * @param step spacing between points along z
+	 */
+	public void field(double[] row, int offset, int count, double x, double y, double z, double step) {
+		for (int k = 0; k < count; k++) {
+			row[offset + k] = field(x, y, z + k * step);
+		}
+	}
+	
+	/**
+	 * mesh creation function
+	 * called by indexed runs for the first mesh, and again
+	 * whenever a mesh runs out of 16-bit indexes
+	 * 
+	 * override this function to add attributes to the mesh.
+	 * the stride it needs is given by each indexed run.
+	 * 
+	 * @return new, empty mesh
+	 */
+	public Mesh mesh() {
+		return new Mesh();
+	}
+	
+	/**
+	 * count the cubes that fit along one axis of the volume
+	 * 
+	 * @param a starting coordinate
+	 * @param b ending coordinate
+	 * @param step length of each cube
+	 * @return count of cubes
+	 */
+	static int count(double a, double b, double step) {
+		return (b < a) ? 0 : (int) Math.floor((b - a) / step) + 1;
+	}
+	
+	/**
+	 * sample the field across one lattice plane of constant x,
+	 * one row at a time
+	 * 
+	 * @param slab receives field values, indexed by j * (kl + 1) + k
+	 * @param x x-coordinate of the plane
+	 * @param y, z starting corner of the plane
+	 * @param step lattice spacing
+	 * @param jl, kl count of cubes along y and z within the plane
+	 */
+	void sample(double[] slab, double x, double y, double z, double step, int jl, int kl) {
+		int kw = kl + 1;
+		for (int j = 0; j <= jl; j++) {
+			field(slab, j * kw, kw, x, y + j * step, z, step);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.wordsaretoys.soar;
+
+import java.util.LinkedHashMap;
+
+/**
+ * represents an interpolated 3D space whose values
+ * are generated as they're needed
+ * 
+ * the field is divided into cubic tiles of TILE points
+ * on a side. a tile is generated on first access, and
+ * kept in memory until the budget is exceeded, least
+ * recently used first out. a tile found without locking
+ * isn't reordered, so each remembers when it was last
+ * sampled, and one that's been sampled since it was put
+ * in order is moved back to the new end when it comes up
+ * for eviction. an evicted tile is generated again if
+ * it's needed. memory use follows the region
+ * being sampled, not the size of the field, which may be
+ * as large as an int can index.
+ * 
+ * sampling and wrapping are as for Field. values can't
+ * be written, as they'd be lost when their tile is.
+ * 
+ * to use, create an instance of the class and override
+ * the generate method with your own function, such as
+ * Random.value(). it must give the same value for a
+ * point each time, and may be called from any thread.
+ * 
+ * @author chris
+ *
+ */
+public class LazyField extends Field {
+	
+	// limit on memory used by tiles, in bytes
+	public long budget = 16 * 1024 * 1024;
+	
+	// memory used by tiles, in bytes
+	public long bytes = 0;
+	
+	// count of tiles generated
+	public long generated = 0;
+	
+	// points in a tile
+	final static private int CUBE = TILE * TILE * TILE;
+	
+	// slots for recently used tiles, as a power of two
+	final static private int RECENT_BITS = 6;
+	
+	private LinkedHashMap<Integer, Tile> tiles;
+	
+	// recently used tiles, found without locking. tiles
+	// are immutable, so a thread that sees a stale slot
+	// just takes the slow path. an evicted tile stays
+	// here until its slot is reused.
+	private Tile[] recent;
+	
+	// advanced whenever a tile is put in order
+	private int clock;
+	
+	// count of tiles along each axis
+	private int tx, ty;
+	
+	/**
+	 * values of a single tile
+	 */
+	private static class Tile {
+		
+		public final int id;
+		public final double[] values;
+		
+		// clock when the tile was last put in order, and
+		// when it was last sampled. a stale clock read or a
+		// lost write only makes the tile look older.
+		public int order;
+		public int seen;
+		
+		public Tile(int id, double[] values) {
+			this.id = id;
+			this.values = values;
+		}
+	}
+	
+	/**
+	 * create lazy field
+	 * @param width, height, depth dimensions of field (multiples of TILE)
+	 * @param amp amplitude
+	 * @param xpr, ypr, zpr period
+	 */
+	public LazyField(int width, int height, int depth, double amp, double xpr, double ypr, double zpr) {
+		super(width, height, depth, amp, xpr, ypr, zpr, LAZY | TILED | EMPTY);
+		if (!tiled) {
+			throw new IllegalArgumentException("dimensions must be multiples of " + TILE);
+		}
+		tx = width / TILE;
+		ty = height / TILE;
+		tiles = new LinkedHashMap<Integer, Tile>(64, 0.75f, true);
+		recent = new Tile[1 << RECENT_BITS];
+	}
+	
+	/**
+	 * generator function
+	 * called to find the value at each point of a tile
+	 * 
+	 * override this function in your own code!
+	 * 
+	 * @param x, y, z coordinates of point
+	 * @return value at point
+	 */
+	public double generate(int x, int y, int z) {
+		return 0;
+	}
+	
+	/**
+	 * find a value, generating its tile if necessary
+	 * 
+	 * the field is tiled, so the tile is the index
+	 * divided by the points in a tile
+	 * 
+	 * @param i index of value
+	 * @return value
+	 */
+	double fetch(int i) {
+		int id = i / CUBE;
+		// hash the id, as neighbors along y and z are
+		// usually a power of two apart
+		int slot = (id * 0x9e3779b9) >>> (32 - RECENT_BITS);
+		Tile t = recent[slot];
+		if (t == null || t.id != id) {
+			t = tile(id);
+			recent[slot] = t;
+		} else {
+			int c = clock;
+			if (t.seen != c) {
+				t.seen = c;
+			}
+		}
+		return t.values[i % CUBE];
+	}
+	
+	/**
+	 * find a tile in memory, or generate it
+	 * @param id index of tile
+	 * @return tile
+	 */
+	private Tile tile(int id) {
+		Tile t;
+		synchronized (this) {
+			t = tiles.get(id);
+			if (t != null) {
+				t.order = t.seen = ++clock;
+				return t;
+			}
+		}
+		
+		// generate outside the lock, so other threads
+		// can sample tiles that are already in memory
+		double[] v = new double[CUBE];
+		int x0 = (id % tx) * TILE;
+		int y0 = ((id / tx) % ty) * TILE;
+		int z0 = (id / (tx * ty)) * TILE;
+		for (int z = 0, n = 0; z < TILE; z++) {
+			for (int y = 0; y < TILE; y++) {
+				for (int x = 0; x < TILE; x++, n++) {
+					v[n] = generate(x0 + x, y0 + y, z0 + z);
+				}
+			}
+		}
+		t = new Tile(id, v);
+		
+		synchronized (this) {
+			// another thread may have got here first
+			Tile o = tiles.get(id);
+			if (o != null) {
+				o.order = o.seen = ++clock;
+				return o;
+			}
+			tiles.put(id, t);
+			t.order = t.seen = ++clock;
+			bytes += CUBE * 8;
+			generated++;
+			
+			// a tile sampled since it was put in order goes
+			// back to the new end instead. moves are limited,
+			// as other threads may sample tiles while this
+			// one holds the lock.
+			int moves = tiles.size();
+			while (bytes > budget && tiles.size() > 1) {
+				Tile e = tiles.values().iterator().next();
+				if ( (e.seen != e.order && moves-- > 0) || e == t) {
+					tiles.get(e.id);
+					e.order = e.seen = ++clock;
+				} else {
+					bytes -= CUBE * 8;
+					tiles.remove(e.id);
+				}
+			}
+		}
+		return t;
+	}
+	
+	/**
+	 * drop all tiles from memory
+	 */
+	public synchronized void clear() {
+		tiles.clear();
+		bytes = 0;
+		recent = new Tile[1 << RECENT_BITS];
+	}
+}
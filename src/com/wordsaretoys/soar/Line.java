@@ -12,6 +12,7 @@ public class Line extends Space {
 	
 	private double amplitude;
 	private double period;
+	private int[] xo;
 	
 	/**
 	 * create line
@@ -20,11 +21,43 @@ public class Line extends Space {
 	 * @param per line period
 	 */
 	public Line(int width, double amp, double per) {
-		super(width);
+		this(width, amp, per, DOUBLE);
+	}
+	
+	/**
+	 * create line with a given storage type
+	 * @param width length of line
+	 * @param amp line amplitude
+	 * @param per line period
+	 * @param type storage type (see Space). TILED is ignored,
+	 * as a line is stored the same way in either layout
+	 */
+	public Line(int width, double amp, double per, int type) {
+		super(width, type);
 		
+		// a line has a single layout, so it's never tiled
+		this.tiled = false;
 		this.width = width;
 		this.amplitude = amp;
 		this.period = per;
+		this.pow2 = isPowerOfTwo(width);
+		this.xo = offsets(width, 1, TILE);
+	}
+	
+	/**
+	 * get the amplitude and period of the line
+	 * @return amplitude, then period
+	 */
+	double[] params() {
+		return new double[] { amplitude, period, 0, 0 };
+	}
+	
+	/**
+	 * get the kind and dimensions of the line
+	 * @return kind, then width, height and depth
+	 */
+	int[] shape() {
+		return new int[] { LINE, width, 1, 1 };
 	}
 
 	/**
@@ -33,14 +66,31 @@ public class Line extends Space {
 	 * @return value at x
 	 */
 	public double get(double x) {
-		double xf = (period * x) % width;
-		if (xf < 0) {
-			xf += width;
-		}
-		int xi0 = (int) Math.floor(xf);
+		double xf = wrap(period * x, width);
+		int xi0 = (int) xf;
 		double mu = xf - xi0;
-		int xi1 = (int) (xi0 + 1) % width;
+		int xi1 = next(xi0, width);
 		
-		return amplitude * Space.cerp(data[xi0], data[xi1], mu);
+		return amplitude * sample1(xi0, xi1, blend(mu));
+	}
+	
+	/**
+	 * get values at regularly spaced points
+	 * 
+	 * out[offset + i] receives the value at x + i * dx, the same
+	 * value get() returns, with wrapping and blend weights found
+	 * once for all points
+	 * 
+	 * @param out receives values
+	 * @param offset index of first value within out
+	 * @param x first point
+	 * @param dx spacing between points
+	 * @param n count of points
+	 */
+	public void get(double[] out, int offset, double x, double dx, int n) {
+		Grid g = borrow(n, 0, 0);
+		axis(g.x0, g.x1, g.wx, x, dx, n, period, width, xo);
+		row1(out, offset, n, g.x0, g.x1, g.wx, amplitude);
+		release(g);
 	}
 }
@@ -98,14 +98,40 @@ public class Mesh {
 		length += il;
 	}
 	
+	/**
+	 * specify a single 3-component vertex
+	 * 
+	 * same as set(x, y, z), without allocating
+	 * an array for the arguments
+	 * 
+	 * @param x, y, z vertex data
+	 */
+	public void set(double x, double y, double z) {
+		grow(3);
+		data.put( (float) x );
+		data.put( (float) y );
+		data.put( (float) z );
+		length += 3;
+	}
+	
 	/**
 	 * load an array of vertex data
 	 * @param d array
 	 */
 	public void load(float[] d) {
-		grow(d.length);
-		data.put(d);
-		length += d.length;
+		load(d, 0, d.length);
+	}
+	
+	/**
+	 * load part of an array of vertex data
+	 * @param d array
+	 * @param offset index of first float to load
+	 * @param count number of floats to load
+	 */
+	public void load(float[] d, int offset, int count) {
+		grow(count);
+		data.put(d, offset, count);
+		length += count;
 	}
 	
 	/**
@@ -233,6 +259,22 @@ public class Mesh {
 		indexLength += il;
 	}
 	
+	/**
+	 * specify a single triangle of index data
+	 * 
+	 * same as index(a, b, c), without allocating
+	 * an array for the arguments
+	 * 
+	 * @param a, b, c indexes of triangle vertexes
+	 */
+	public void index(int a, int b, int c) {
+		growIndex(3);
+		indexData.put( (short) a);
+		indexData.put( (short) b);
+		indexData.put( (short) c);
+		indexLength += 3;
+	}
+	
 	/**
 	 * class for iterating over a 2D surface
 	 * useful for building heightmaps/shapes
@@ -0,0 +1,426 @@
+package com.wordsaretoys.soar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+/**
+ * caches the meshes generated by CubeMarch.runIndexed()
+ * 
+ * results are keyed by everything that determines them: an
+ * identifier for the field function (and any seed it uses),
+ * the bounds, step, and threshold of the march, and whether
+ * normals were generated. recent results are kept in memory,
+ * least recently used first out once the budget is exceeded.
+ * 
+ * if a directory is supplied, every result is also written to
+ * it, so that a result evicted from memory, or generated in an
+ * earlier run of the app, can be read back instead of marched.
+ * files are kept within a separate disk budget, least recently
+ * used (by modification time) deleted first; purge() deletes
+ * them all.
+ * 
+ * methods may be called from any thread, and the counters
+ * may be read from any thread.
+ * 
+ * @author chris
+ *
+ */
+public class MeshCache {
+	
+	// limit on memory used by cached results, in bytes
+	public long budget = 8 * 1024 * 1024;
+	
+	// limit on disk used by cached results, in bytes
+	public long diskBudget = 64 * 1024 * 1024;
+	
+	// memory used by cached results, in bytes
+	public volatile long bytes = 0;
+	
+	// count of requests served from the cache, from memory or disk
+	public volatile long hits = 0;
+	
+	// count of requests served by marching
+	public volatile long misses = 0;
+	
+	// count of hits read back from disk
+	public volatile long loads = 0;
+	
+	// identifies the file format
+	final static private int MAGIC = 0x4d455348;
+	
+	// suffix of files still being written
+	final static private String TEMP = ".tmp";
+	
+	private File dir;
+	private LinkedHashMap<String, Entry> entries;
+	
+	// held while deleting files to fit the disk budget
+	private Object disk = new Object();
+	
+	/**
+	 * vertex and index data of a single result
+	 */
+	private static class Entry {
+		
+		public ArrayList<float[]> vertexes = new ArrayList<float[]>();
+		public ArrayList<short[]> indexes = new ArrayList<short[]>();
+		public long bytes;
+	}
+	
+	/**
+	 * constructor
+	 * @param dir directory to store results in, or null for memory only
+	 */
+	public MeshCache(File dir) {
+		this.dir = dir;
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	}
+	
+	/**
+	 * generate meshes, or fetch them from the cache
+	 * 
+	 * on a hit, the march is skipped entirely, and the meshes
+	 * are created by the cube march object's mesh() method
+	 * and loaded with the cached data.
+	 * 
+	 * @param march cube march object to generate meshes with
+	 * @param field identifies the field function and its seed
+	 * @param start starting corner of the cube volume
+	 * @param finish ending corner
+	 * @param step length of each cube
+	 * @param thresh isosurface threshold
+	 * @return list of meshes
+	 */
+	public ArrayList<Mesh> runIndexed(CubeMarch march, long field, Vector start, Vector finish, double step, double thresh) {
+		String key = key(field, start, finish, step, thresh, march.normals);
+		
+		Entry e = get(key);
+		if (e != null) {
+			ArrayList<Mesh> meshes = new ArrayList<Mesh>();
+			for (int i = 0, il = e.vertexes.size(); i < il; i++) {
+				Mesh m = march.mesh();
+				m.load(e.vertexes.get(i));
+				m.loadIndex(e.indexes.get(i));
+				meshes.add(m);
+			}
+			return meshes;
+		}
+		
+		ArrayList<Mesh> meshes = march.runIndexed(start, finish, step, thresh);
+		
+		e = new Entry();
+		for (Mesh m : meshes) {
+			float[] v = new float[m.length];
+			FloatBuffer vb = m.data.duplicate();
+			vb.position(0);
+			vb.get(v);
+			short[] x = new short[m.indexLength];
+			ShortBuffer xb = m.indexData.duplicate();
+			xb.position(0);
+			xb.get(x);
+			e.vertexes.add(v);
+			e.indexes.add(x);
+			e.bytes += v.length * 4 + x.length * 2;
+		}
+		put(key, e);
+		return meshes;
+	}
+	
+	/**
+	 * build the key for a result
+	 * 
+	 * doubles are keyed by their exact bits, so the key
+	 * also serves as a file name
+	 * 
+	 * @return key
+	 */
+	private static String key(long field, Vector start, Vector finish, double step, double thresh, boolean normals) {
+		StringBuilder b = new StringBuilder();
+		b.append(Long.toHexString(field));
+		b.append('-').append(Long.toHexString(Double.doubleToLongBits(start.x)));
+		b.append('-').append(Long.toHexString(Double.doubleToLongBits(start.y)));
+		b.append('-').append(Long.toHexString(Double.doubleToLongBits(start.z)));
+		b.append('-').append(Long.toHexString(Double.doubleToLongBits(finish.x)));
+		b.append('-').append(Long.toHexString(Double.doubleToLongBits(finish.y)));
+		b.append('-').append(Long.toHexString(Double.doubleToLongBits(finish.z)));
+		b.append('-').append(Long.toHexString(Double.doubleToLongBits(step)));
+		b.append('-').append(Long.toHexString(Double.doubleToLongBits(thresh)));
+		b.append(normals ? "-n" : "");
+		return b.toString();
+	}
+	
+	/**
+	 * find a result in memory or on disk
+	 * @param key key of result
+	 * @return result, or null if not cached
+	 */
+	private Entry get(String key) {
+		Entry e;
+		synchronized (this) {
+			e = entries.get(key);
+			if (e != null) {
+				hits++;
+				return e;
+			}
+		}
+		
+		e = read(key);
+		synchronized (this) {
+			if (e == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			loads++;
+		}
+		add(key, e);
+		return e;
+	}
+	
+	/**
+	 * add a new result to memory and disk
+	 * @param key key of result
+	 * @param e result
+	 */
+	private void put(String key, Entry e) {
+		if (write(key, e)) {
+			trim();
+		}
+		add(key, e);
+	}
+	
+	/**
+	 * add a result to memory, evicting old results to fit
+	 * @param key key of result
+	 * @param e result
+	 */
+	private synchronized void add(String key, Entry e) {
+		Entry old = entries.put(key, e);
+		if (old != null) {
+			bytes -= old.bytes;
+		}
+		bytes += e.bytes;
+		
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > budget && it.hasNext()) {
+			Entry o = it.next();
+			if (o != e) {
+				bytes -= o.bytes;
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * drop all results from memory
+	 * results on disk are retained
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+	
+	/**
+	 * drop all results from memory and disk
+	 */
+	public void purge() {
+		clear();
+		if (dir == null) {
+			return;
+		}
+		synchronized (disk) {
+			File[] files = dir.listFiles();
+			if (files == null) {
+				return;
+			}
+			for (File f : files) {
+				if (!f.getName().endsWith(TEMP)) {
+					f.delete();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * delete the least recently used files until
+	 * the rest fit within the disk budget
+	 */
+	private void trim() {
+		synchronized (disk) {
+			File[] files = dir.listFiles();
+			if (files == null) {
+				return;
+			}
+			long total = 0;
+			int n = 0;
+			final long[] time = new long[files.length];
+			for (File f : files) {
+				if (!f.getName().endsWith(TEMP)) {
+					total += f.length();
+					files[n++] = f;
+				}
+			}
+			if (total <= diskBudget) {
+				return;
+			}
+			
+			// sort by time of last use, oldest first. times are read
+			// once, as another thread may touch a file mid-sort
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+				time[i] = files[i].lastModified();
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return time[a] < time[b] ? -1 : (time[a] > time[b] ? 1 : 0);
+				}
+			});
+			for (int i = 0; i < n && total > diskBudget; i++) {
+				File f = files[order[i]];
+				long length = f.length();
+				if (f.delete()) {
+					total -= length;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * write a result to disk
+	 * 
+	 * the result is written to a temporary file which
+	 * is then renamed, so a partial file is never read
+	 * 
+	 * @param key key of result
+	 * @param e result
+	 * @return true if a new file was written
+	 */
+	private boolean write(String key, Entry e) {
+		if (dir == null) {
+			return false;
+		}
+		File file = new File(dir, key);
+		if (file.exists()) {
+			return false;
+		}
+		
+		int il = e.vertexes.size();
+		ByteBuffer b = ByteBuffer.allocate(8 + il * 8 + (int) e.bytes);
+		b.putInt(MAGIC);
+		b.putInt(il);
+		for (int i = 0; i < il; i++) {
+			float[] v = e.vertexes.get(i);
+			short[] x = e.indexes.get(i);
+			b.putInt(v.length);
+			b.asFloatBuffer().put(v);
+			b.position(b.position() + v.length * 4);
+			b.putInt(x.length);
+			b.asShortBuffer().put(x);
+			b.position(b.position() + x.length * 2);
+		}
+		b.flip();
+		
+		File temp = new File(dir, key + "." + Thread.currentThread().getId() + TEMP);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				FileChannel ch = out.getChannel();
+				while (b.hasRemaining()) {
+					ch.write(b);
+				}
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				return false;
+			}
+			return true;
+		} catch (IOException ex) {
+			Log.e("cache", "can't write " + file + ": " + ex.getMessage());
+			temp.delete();
+			return false;
+		}
+	}
+	
+	/**
+	 * read a result from disk
+	 * 
+	 * the file's modification time is set to now, marking
+	 * it as recently used for the disk budget
+	 * 
+	 * @param key key of result
+	 * @return result, or null if not found or unreadable
+	 */
+	private Entry read(String key) {
+		if (dir == null) {
+			return null;
+		}
+		File file = new File(dir, key);
+		if (!file.exists()) {
+			return null;
+		}
+		
+		ByteBuffer b;
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel ch = in.getChannel();
+				b = ByteBuffer.allocate((int) ch.size());
+				while (b.hasRemaining()) {
+					if (ch.read(b) < 0) {
+						break;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			Log.e("cache", "can't read " + file + ": " + ex.getMessage());
+			return null;
+		}
+		b.flip();
+		file.setLastModified(System.currentTimeMillis());
+		
+		try {
+			if (b.getInt() != MAGIC) {
+				return null;
+			}
+			Entry e = new Entry();
+			int il = b.getInt();
+			for (int i = 0; i < il; i++) {
+				float[] v = new float[b.getInt()];
+				b.asFloatBuffer().get(v);
+				b.position(b.position() + v.length * 4);
+				short[] x = new short[b.getInt()];
+				b.asShortBuffer().get(x);
+				b.position(b.position() + x.length * 2);
+				e.vertexes.add(v);
+				e.indexes.add(x);
+				e.bytes += v.length * 4 + x.length * 2;
+			}
+			return e;
+		} catch (RuntimeException ex) {
+			// truncated or corrupt
+			Log.e("cache", "can't read " + file + ": " + ex);
+			return null;
+		}
+	}
+}
@@ -1,42 +1,93 @@
 package com.wordsaretoys.soar;
 
+import java.util.ArrayList;
+
 /**
  * texture/heightmap/field pattern generators
  * 
+ * spaces of any storage type and layout may be used.
+ * points are visited in row order, so a seed gives
+ * the same pattern in every layout.
+ * 
+ * random patterns take a seed, or a generator to draw
+ * from. nothing is shared between calls, so patterns
+ * may be generated on several threads at once, as long
+ * as each space and generator is used by one thread.
+ * see Random.split() for generators to hand out.
+ * 
+ * a Pipeline runs a series of operations on a space
+ * in as few passes over it as possible.
+ * 
  * @author chris
  *
  */
 final public class Pattern {
 
-	final static private Random rng = new Random();
-	
 	/**
 	 * fill a space with a given value
 	 * @param space, space to fill
 	 * @param c, value to fill it with
 	 */
 	final static public void fill(Space space, double c) {
-		double[] data = space.data;
 		long length = space.length;
 		for (int i = 0; i < length; i++) {
-			data[i] = c;
+			space.write(i, c);
 		}
 	}
 
 	/**
 	 * fill a space with random values
+	 * 
+	 * each value depends only on the seed and the index of
+	 * its point in row order, as for the ranged form below
+	 * 
 	 * @param space space to fill
-	 * @param seed RNG seed
+	 * @param seed RNG seed (zero picks one from the clock)
 	 * @param lo lowest bound of random values
 	 * @param hi highest bound of random values
 	 */
 	final static public void randomize(Space space, long seed, double lo, double hi) {
-		double[] data = space.data;
+		if (seed == 0) {
+			seed = System.currentTimeMillis();
+		}
+		randomize(space, seed, lo, hi, 0, space.length);
+	}
+	
+	/**
+	 * fill part of a space with random values
+	 * 
+	 * values come from Random.value(), so any set of ranges
+	 * filled in any order, or at once on several threads,
+	 * gives the same space as filling all of it at once.
+	 * 
+	 * @param space space to fill
+	 * @param seed RNG seed
+	 * @param lo lowest bound of random values
+	 * @param hi highest bound of random values
+	 * @param start index of first point to fill, in row order
+	 * @param count count of points to fill
+	 */
+	final static public void randomize(Space space, long seed, double lo, double hi, int start, int count) {
+		double d = hi - lo;
+		boolean tiled = space.tiled;
+		for (int i = start, il = start + count; i < il; i++) {
+			space.write(tiled ? space.index(i) : i, lo + d * Random.value(seed, i));
+		}
+	}
+	
+	/**
+	 * fill a space with random values
+	 * @param space space to fill
+	 * @param rng generator to draw values from
+	 * @param lo lowest bound of random values
+	 * @param hi highest bound of random values
+	 */
+	final static public void randomize(Space space, Random rng, double lo, double hi) {
 		long length = space.length;
+		boolean tiled = space.tiled;
 
-		rng.reseed(seed);
 		for (int i = 0; i < length; i++) {
-			data[i] = rng.get(lo, hi);
+			space.write(tiled ? space.index(i) : i, rng.get(lo, hi));
 		}
 	}
 	
@@ -57,7 +108,25 @@ final public class Pattern {
 	 * @param p3 probability of moving -y on each pass
 	 */
 	final static public void walk(Surface surf, long seed, double reps, double blend, double c, double p0, double p1, double p2, double p3) {
-		double[] data = surf.data;
+		walk(surf, new Random(seed), reps, blend, c, p0, p1, p2, p3);
+	}
+	
+	/**
+	 * generate pattern by random walking across space
+	 * 
+	 * as walk() above, drawing from a given generator
+	 * 
+	 * @param surf surface to walk across
+	 * @param rng generator to draw steps from
+	 * @param reps multiplier for iterations
+	 * @param blend multiplier for blending 
+	 * @param c value to blend on each pass
+	 * @param p0 probability of moving +x on each pass
+	 * @param p1 probability of moving +y on each pass
+	 * @param p2 probability of moving -x on each pass
+	 * @param p3 probability of moving -y on each pass
+	 */
+	final static public void walk(Surface surf, Random rng, double reps, double blend, double c, double p0, double p1, double p2, double p3) {
 		int width = surf.width;
 		int height = surf.height;
 		
@@ -65,13 +134,12 @@ final public class Pattern {
 		double dnelb = 1 - blend;
 		int x, y, i, j;
 		
-		rng.reseed(seed);
 		x = (int) Math.floor(rng.get(0, width));
 		y = (int) Math.floor(rng.get(0, height));
 		for (i = 0; i < il; i++) {
 		
-			j = x + width * y;
-			data[j] = data[j] * dnelb + c * blend;
+			j = surf.index(x, y);
+			surf.write(j, surf.read(j) * dnelb + c * blend);
 			
 			if (rng.get() < p0) {
 				x++;
@@ -113,7 +181,6 @@ final public class Pattern {
 	 * @param len length of line
 	 */
 	final static public void scratch(Surface surf, double blend, double c, int x, int y, double dx, double dy, int len) {
-		double[] data = surf.data;
 		int width = surf.width;
 		int height = surf.height;
 		
@@ -122,8 +189,8 @@ final public class Pattern {
 		
 		for (i = 0; i < len; i++) {
 		
-			j = (int)(Math.floor(x) + width * Math.floor(y));
-			data[j] = data[j] * dnelb + c * blend;
+			j = surf.index(x, y);
+			surf.write(j, surf.read(j) * dnelb + c * blend);
 			
 			x += dx;
 			y += dy;
@@ -152,17 +219,29 @@ final public class Pattern {
 	 * @param c value to blend in
 	 */
 	final static public void stipple(Space space, long seed, int reps, double blend, double c) {
-		double[] data = space.data;
+		stipple(space, new Random(seed), reps, blend, c);
+	}
+	
+	/**
+	 * blend in a value at random points
+	 * @param space space to fill
+	 * @param rng generator to draw points from
+	 * @param reps multiplier for iterations
+	 * @param blend multiplier for blending
+	 * @param c value to blend in
+	 */
+	final static public void stipple(Space space, Random rng, int reps, double blend, double c) {
 		long length = space.length;
 
 		long il = Math.round(length * reps);
 		double dnelb = 1 - blend;
+		boolean tiled = space.tiled;
 		int i, j;
 		
-		rng.reseed(seed);
 		for (i = 0; i < il; i++) {
 			j = (int) Math.floor(rng.get(0, length));
-			data[j] = data[j] * dnelb + c * blend;
+			j = tiled ? space.index(j) : j;
+			space.write(j, space.read(j) * dnelb + c * blend);
 		}
 	}
 	
@@ -173,7 +252,6 @@ final public class Pattern {
 	 * @param hi upper bound of range
 	 */
 	final static public void normalize(Space space, double lo, double hi) {
-		double[] data = space.data;
 		long length = space.length;
 
 		double olo, ohi, d0, d1, nn;
@@ -181,10 +259,10 @@ final public class Pattern {
 		
 		// determine existing lo and hi values
 		olo = Double.MAX_VALUE;
-		ohi = Double.MIN_VALUE;
+		ohi = -Double.MAX_VALUE;
 		for (i = 0; i < length; i++) {
-			olo = Math.min(olo, data[i]);
-			ohi = Math.max(ohi, data[i]);
+			olo = Math.min(olo, space.read(i));
+			ohi = Math.max(ohi, space.read(i));
 		}
 		if (olo == ohi)
 			return;
@@ -193,8 +271,272 @@ final public class Pattern {
 		d0 = ohi - olo;
 		d1 = hi - lo;
 		for (i = 0; i < length; i++) {
-			nn = (data[i] - olo) / d0;
-			data[i] = nn * d1 + lo;
+			nn = (space.read(i) - olo) / d0;
+			space.write(i, nn * d1 + lo);
+		}
+	}
+	
+	/**
+	 * records a series of operations on a space, then
+	 * runs them together in as few passes as it can
+	 * 
+	 * each point is taken through every operation in turn
+	 * before moving on to the next, so the space is read
+	 * and written once per pass, rather than once per
+	 * operation. stipple hits are counted up front, then
+	 * applied per point in a single blend. each stipple
+	 * keeps a count for every point of the space while the
+	 * pipeline runs: 2 bytes a point, or 4 once any point
+	 * is hit more than 32767 times.
+	 * normalize needs the range of the values before it,
+	 * found as the previous pass writes them, so it starts
+	 * a new pass; otherwise, one pass does everything.
+	 * operations before a fill or randomize in the same
+	 * pass are skipped, as their results would be lost.
+	 * 
+	 * results match calling the same operations one at a
+	 * time, to rounding. intermediate values aren't rounded
+	 * to the storage type, so for float or quantized spaces
+	 * they may differ slightly.
+	 * 
+	 * a pipeline may be run on any number of spaces, but
+	 * on only one at a time.
+	 * 
+	 * @author chris
+	 *
+	 */
+	static public class Pipeline {
+		
+		// operations
+		final static private int FILL = 0;
+		final static private int RANDOMIZE = 1;
+		final static private int STIPPLE = 2;
+		final static private int NORMALIZE = 3;
+		
+		// powers of (1 - blend) kept for stipple counts
+		final static private int POWERS = 32;
+		
+		/**
+		 * a single recorded operation
+		 */
+		private static class Stage {
+			
+			public int op;
+			public long seed;
+			public int reps;
+			public double a, b, c;
+			
+			// count of stipple hits on each point, in wide
+			// once any count outgrows a short, and powers
+			// of (1 - blend) for small counts
+			public short[] hits;
+			public int[] wide;
+			public double[] power;
+			
+			// range of values before a normalize
+			public double lo, hi;
+		}
+		
+		private ArrayList<Stage> stages = new ArrayList<Stage>();
+		
+		/**
+		 * add a stage
+		 * @param op operation
+		 * @return new stage
+		 */
+		private Stage add(int op) {
+			Stage s = new Stage();
+			s.op = op;
+			stages.add(s);
+			return s;
+		}
+		
+		/**
+		 * fill the space with a given value
+		 * @param c value to fill it with
+		 * @return this pipeline
+		 */
+		public Pipeline fill(double c) {
+			add(FILL).c = c;
+			return this;
+		}
+		
+		/**
+		 * fill the space with random values
+		 * as Pattern.randomize(space, seed, lo, hi)
+		 * @param seed RNG seed (zero picks one from the clock)
+		 * @param lo lowest bound of random values
+		 * @param hi highest bound of random values
+		 * @return this pipeline
+		 */
+		public Pipeline randomize(long seed, double lo, double hi) {
+			Stage s = add(RANDOMIZE);
+			s.seed = (seed != 0) ? seed : System.currentTimeMillis();
+			s.a = lo;
+			s.b = hi;
+			return this;
+		}
+		
+		/**
+		 * blend in a value at random points
+		 * as Pattern.stipple(space, seed, reps, blend, c)
+		 * @param seed RNG seed (zero picks one from the clock)
+		 * @param reps multiplier for iterations
+		 * @param blend multiplier for blending
+		 * @param c value to blend in
+		 * @return this pipeline
+		 */
+		public Pipeline stipple(long seed, int reps, double blend, double c) {
+			Stage s = add(STIPPLE);
+			s.seed = (seed != 0) ? seed : System.currentTimeMillis();
+			s.reps = reps;
+			s.a = blend;
+			s.c = c;
+			return this;
+		}
+		
+		/**
+		 * adjust values to a given range
+		 * as Pattern.normalize(space, lo, hi)
+		 * @param lo lower bound of range
+		 * @param hi upper bound of range
+		 * @return this pipeline
+		 */
+		public Pipeline normalize(double lo, double hi) {
+			Stage s = add(NORMALIZE);
+			s.a = lo;
+			s.b = hi;
+			return this;
+		}
+		
+		/**
+		 * run the operations on a space
+		 * @param space space to run them on
+		 */
+		public void run(Space space) {
+			int n = stages.size();
+			int length = space.length;
+			
+			// count stipple hits, drawing points as stipple() does
+			for (int k = 0; k < n; k++) {
+				Stage s = stages.get(k);
+				if (s.op != STIPPLE) {
+					continue;
+				}
+				short[] hits = new short[length];
+				int[] wide = null;
+				Random rng = new Random(s.seed);
+				long il = Math.round(length * s.reps);
+				for (long i = 0; i < il; i++) {
+					int j = (int) Math.floor(rng.get(0, length));
+					if (wide != null) {
+						wide[j]++;
+					} else if (hits[j] < Short.MAX_VALUE) {
+						hits[j]++;
+					} else {
+						// widen the counts rather than clamp them
+						wide = new int[length];
+						for (int m = 0; m < length; m++) {
+							wide[m] = hits[m];
+						}
+						hits = null;
+						wide[j]++;
+					}
+				}
+				s.hits = hits;
+				s.wide = wide;
+				s.power = new double[POWERS];
+				s.power[0] = 1;
+				for (int i = 1; i < POWERS; i++) {
+					s.power[i] = s.power[i - 1] * (1 - s.a);
+				}
+			}
+			
+			// each normalize ends one pass and starts the next
+			int from = 0;
+			for (int k = 0; k < n; k++) {
+				if (stages.get(k).op == NORMALIZE) {
+					pass(space, from, k, stages.get(k));
+					from = k;
+				}
+			}
+			pass(space, from, n, null);
+			
+			for (int k = 0; k < n; k++) {
+				stages.get(k).hits = null;
+				stages.get(k).wide = null;
+			}
+		}
+		
+		/**
+		 * run a range of stages over every point
+		 * @param space space to run them on
+		 * @param from index of first stage
+		 * @param to index past last stage
+		 * @param range if not null, receives the range of values
+		 */
+		private void pass(Space space, int from, int to, Stage range) {
+			// skip anything before the last fill or randomize
+			boolean read = true;
+			for (int k = to - 1; k >= from; k--) {
+				int op = stages.get(k).op;
+				if (op == FILL || op == RANDOMIZE) {
+					from = k;
+					read = false;
+					break;
+				}
+			}
+			if (range == null && from == to) {
+				return;
+			}
+			
+			double lo = Double.MAX_VALUE;
+			double hi = -Double.MAX_VALUE;
+			
+			boolean tiled = space.tiled;
+			for (int i = 0, il = space.length; i < il; i++) {
+				int j = tiled ? space.index(i) : i;
+				double v = read ? space.read(j) : 0;
+				
+				for (int k = from; k < to; k++) {
+					Stage s = stages.get(k);
+					switch (s.op) {
+					case FILL:
+						v = s.c;
+						break;
+					case RANDOMIZE:
+						v = s.a + (s.b - s.a) * Random.value(s.seed, i);
+						break;
+					case STIPPLE:
+						int h = (s.wide != null) ? s.wide[i] : s.hits[i];
+						if (h > 0) {
+							double p = (h < POWERS) ? s.power[h] : Math.pow(1 - s.a, h);
+							v = v * p + s.c * (1 - p);
+						}
+						break;
+					case NORMALIZE:
+						if (s.lo != s.hi) {
+							v = (v - s.lo) / (s.hi - s.lo) * (s.b - s.a) + s.a;
+						}
+						break;
+					}
+				}
+				
+				if (from < to) {
+					space.write(j, v);
+				}
+				if (range != null) {
+					// find the range of the values as stored
+					v = space.read(j);
+					lo = Math.min(lo, v);
+					hi = Math.max(hi, v);
+				}
+			}
+			
+			if (range != null) {
+				range.lo = lo;
+				range.hi = hi;
+			}
 		}
 	}
 }
@@ -1,8 +1,24 @@
 package com.wordsaretoys.soar;
 
 /**
- * implements an addressable linear congruential PRNG
- * (wraps the Java PRNG)
+ * implements a fast PRNG (xoroshiro128**)
+ * 
+ * extends the Java PRNG so it can be used anywhere that
+ * one can, but draws from its own state, without the
+ * synchronization of the Java PRNG. an instance should
+ * only be used by one thread at a time.
+ * 
+ * split() derives a new, independent generator from
+ * this one. to generate in parallel, split one off for
+ * each task, in a fixed order, before starting them;
+ * each task then draws the same numbers however many
+ * threads there are, and in whatever order they run.
+ * jump() hands out substreams in the same way.
+ * 
+ * value() is addressable: it finds the value at any
+ * index or point of a seeded sequence directly, with
+ * no state, so values may be made in any order, on any
+ * thread, or only when they're needed.
  * 
  * @author chris
  *
@@ -10,6 +26,16 @@ package com.wordsaretoys.soar;
 public class Random extends java.util.Random {
 
 	private static final long serialVersionUID = -7936338198349338087L;
+	
+	// seeds a split generator if its own would be zero
+	private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+	
+	// advances the state by 2^64 draws
+	private static final long[] JUMP = { 0xdf900294d8f554a5L, 0x170865df4b3201fcL };
+	
+	// generator state. no initializers, as the superclass
+	// constructor sets them through setSeed() beforehand
+	private long s0, s1;
 
 	public Random() {
 		super();
@@ -23,6 +49,89 @@ public class Random extends java.util.Random {
 		setSeed(seed != 0 ? seed : System.currentTimeMillis());
 	}
 	
+	/**
+	 * set the state of the generator from a seed
+	 * 
+	 * the state is filled by SplitMix64, so that similar
+	 * seeds still give unrelated sequences
+	 * 
+	 * @param seed seed
+	 */
+	public void setSeed(long seed) {
+		super.setSeed(seed);
+		s0 = mix(seed += GOLDEN);
+		s1 = mix(seed += GOLDEN);
+		if ( (s0 | s1) == 0) {
+			s0 = GOLDEN;
+		}
+	}
+	
+	/**
+	 * scramble a value (the SplitMix64 finalizer)
+	 * @param z value
+	 * @return scrambled value
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * find the value at an index of a seeded sequence
+	 * @param seed seed
+	 * @param i index
+	 * @return random value in (0..1)
+	 */
+	public static double value(long seed, long i) {
+		return (mix(mix(seed) + (i + 1) * GOLDEN) >>> 11) * 0x1.0p-53;
+	}
+	
+	/**
+	 * find the value at a point of a seeded lattice
+	 * @param seed seed
+	 * @param x, y, z coordinates of point
+	 * @return random value in (0..1)
+	 */
+	public static double value(long seed, long x, long y, long z) {
+		long h = mix(seed);
+		h = mix(h + (x + 1) * GOLDEN);
+		h = mix(h + (y + 1) * GOLDEN);
+		h = mix(h + (z + 1) * GOLDEN);
+		return (h >>> 11) * 0x1.0p-53;
+	}
+	
+	/**
+	 * generate the next 64 bits
+	 * @return random long
+	 */
+	public long nextLong() {
+		long a = s0;
+		long b = s1;
+		long r = Long.rotateLeft(a * 5, 7) * 9;
+		b ^= a;
+		s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+		s1 = Long.rotateLeft(b, 37);
+		return r;
+	}
+	
+	/**
+	 * generate random bits for the superclass methods
+	 * @param bits count of bits (1..32)
+	 * @return random bits in the low end of an int
+	 */
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+	
+	/**
+	 * generate a random double
+	 * @return random value in (0..1)
+	 */
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+	
 	public double get() {
 		return nextDouble();
 	}
@@ -34,4 +143,47 @@ public class Random extends java.util.Random {
 	public double get(double l, double u) {
 		return l + (u - l) * nextDouble();
 	}
+	
+	/**
+	 * create a new generator from this one
+	 * 
+	 * the new generator's seed is drawn from this one and
+	 * scrambled, so its sequence doesn't follow this one's.
+	 * the same seed and order of calls give the same splits.
+	 * 
+	 * @return new generator
+	 */
+	public Random split() {
+		long z = mix(nextLong());
+		return new Random(z != 0 ? z : GOLDEN);
+	}
+	
+	/**
+	 * create a generator for a substream
+	 * 
+	 * the new generator starts where this one is, and this
+	 * one skips ahead 2^64 draws, so their sequences won't
+	 * overlap. repeated calls give a series of substreams.
+	 * 
+	 * @return new generator
+	 */
+	public Random jump() {
+		Random r = new Random(GOLDEN);
+		r.s0 = s0;
+		r.s1 = s1;
+		
+		long j0 = 0, j1 = 0;
+		for (int i = 0; i < JUMP.length; i++) {
+			for (int b = 0; b < 64; b++) {
+				if ( (JUMP[i] & (1L << b)) != 0) {
+					j0 ^= s0;
+					j1 ^= s1;
+				}
+				nextLong();
+			}
+		}
+		s0 = j0;
+		s1 = j1;
+		return r;
+	}
 }
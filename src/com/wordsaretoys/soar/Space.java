@@ -1,24 +1,1268 @@
 package com.wordsaretoys.soar;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
 /**
  * creates bitmap of n dimensions for 
  * spatial interpolation and textures
  * 
+ * the bitmap may be stored as doubles (the default), as
+ * floats, or as floats or doubles in a direct buffer outside
+ * of the heap. data holds the bitmap only for double storage;
+ * use read() and write() to access any kind of storage.
+ * 
+ * BYTE and SHORT storage quantize each value to 8 or 16
+ * bits, as offset + scale * n for unsigned n. by default
+ * they hold (0..1), as Texture expects; use quantize() to
+ * fit them to the range of an existing space instead.
+ * they're held in byte or short arrays on the heap, or in
+ * buffers when mapped from a file by load().
+ * LAZY storage has no bitmap; see LazyField.
+ * 
+ * save() writes a space to a file, and load() maps it back
+ * into memory without copying it, to be paged in as used.
+ * 
+ * values are blended between bitmap points by cosine
+ * interpolation, unless another mode is set. the blend
+ * weight along each axis is found once per sample.
+ * 
+ * if every dimension of a space is a power of two, it
+ * wraps coordinates with a division and a bit mask, which
+ * is faster than the general modulus and gives the same
+ * values for coordinates within the range of a long.
+ * 
+ * surfaces and fields may also be stored as square or
+ * cubic tiles of TILE points on a side, rather than in
+ * rows, by adding TILED to the storage type. neighboring
+ * points then lie closer together in memory. index()
+ * finds where a point is stored in either layout.
+ * 
  * @author chris
  *
  */
 public class Space {
 
+	// storage types
+	final static public int DOUBLE = 0;
+	final static public int FLOAT = 1;
+	final static public int DIRECT = 2;
+	final static public int DIRECT_DOUBLE = 3;
+	final static public int BYTE = 4;
+	final static public int SHORT = 5;
+	
+	// storage type of spaces that generate their values
+	final static public int LAZY = 6;
+	
+	// layout flag, add to storage type
+	final static public int TILED = 16;
+	
+	// storage flag, leaves the bitmap to be supplied later
+	final static protected int EMPTY = 32;
+	
+	// space file header
+	final static private int MAGIC = 0x53504143;
+	final static private int VERSION = 1;
+	final static private int HEADER = 128;
+	
+	// kinds of space in a file
+	final static int LINE = 1;
+	final static int SURFACE = 2;
+	final static int FIELD = 3;
+	
+	// points along each edge of a tile
+	final static public int TILE = 8;
+	
+	// interpolation modes
+	final static public int COSINE = 0;
+	final static public int LINEAR = 1;
+	final static public int QUINTIC = 2;
+	final static public int TABLE = 3;
+	
+	// intervals in the cosine table, error is under 1e-5
+	final static private int TABLE_SIZE = 256;
+	final static private double[] table = new double[TABLE_SIZE + 2];
+	
+	static {
+		for (int i = 0; i <= TABLE_SIZE; i++) {
+			table[i] = (1.0 - Math.cos(Math.PI * i / TABLE_SIZE)) / 2.0;
+		}
+		// guards the lookup at mu = 1
+		table[TABLE_SIZE + 1] = 1;
+	}
+	
 	public double[] data;
+	public float[] floats;
+	public byte[] bytes;
+	public short[] shorts;
+	public FloatBuffer buffer;
+	public DoubleBuffer doubleBuffer;
+	public ByteBuffer byteBuffer;
+	public ShortBuffer shortBuffer;
 	public int length;
+	public int type;
+	public int mode = COSINE;
+	public boolean tiled;
+	
+	// dequantization for BYTE and SHORT storage
+	public double scale = 1;
+	public double offset = 0;
+	
+	// largest quantized values
+	final static private int BYTE_MAX = 0xff;
+	final static private int SHORT_MAX = 0xffff;
+	
+	// true if all dimensions are powers of two
+	protected boolean pow2;
+	
+	// how the bitmap is held. samplers pick a typed path
+	// on this once per call, rather than switching on the
+	// storage type for every value they read
+	int store;
+	
+	// kinds of store: typed arrays, or anything that read()
+	// handles (buffers, mapped files, generated values)
+	final static int DOUBLES = 0;
+	final static int FLOATS = 1;
+	final static int VALUES = 2;
+	final static int BYTES = 3;
+	final static int SHORTS = 4;
+	
+	/**
+	 * bitmap points and blend weights for each
+	 * sample along the axes of a regular grid
+	 */
+	static class Grid {
+		
+		public int nx, ny, nz;
+		public int[] x0, x1, y0, y1, z0, z1;
+		public double[] wx, wy, wz;
+		
+		/**
+		 * constructor
+		 * @param nx, ny, nz count of samples along each axis
+		 */
+		public Grid(int nx, int ny, int nz) {
+			x0 = x1 = y0 = y1 = z0 = z1 = new int[0];
+			wx = wy = wz = new double[0];
+			resize(nx, ny, nz);
+		}
+		
+		/**
+		 * set the count of samples along each axis,
+		 * growing the arrays if they're too short
+		 * @param nx, ny, nz count of samples along each axis
+		 */
+		public void resize(int nx, int ny, int nz) {
+			this.nx = nx;
+			this.ny = ny;
+			this.nz = nz;
+			if (x0.length < nx) {
+				x0 = new int[nx];
+				x1 = new int[nx];
+				wx = new double[nx];
+			}
+			if (y0.length < ny) {
+				y0 = new int[ny];
+				y1 = new int[ny];
+				wy = new double[ny];
+			}
+			if (z0.length < nz) {
+				z0 = new int[nz];
+				z1 = new int[nz];
+				wz = new double[nz];
+			}
+		}
+	}
+	
+	// a grid for each thread, reused by bulk gets
+	private static ThreadLocal<Grid> grids = new ThreadLocal<Grid>();
+	
+	/**
+	 * borrow the calling thread's grid for a bulk get
+	 * 
+	 * the grid is taken from the thread until release(),
+	 * so a nested bulk get on the same thread, e.g. from
+	 * LazyField.generate(), gets a new grid of its own.
+	 * 
+	 * @param nx, ny, nz count of samples along each axis
+	 * @return grid sized for the samples
+	 */
+	static Grid borrow(int nx, int ny, int nz) {
+		Grid g = grids.get();
+		if (g == null) {
+			return new Grid(nx, ny, nz);
+		}
+		grids.set(null);
+		g.resize(nx, ny, nz);
+		return g;
+	}
+	
+	/**
+	 * return a borrowed grid to the calling thread
+	 * @param g grid
+	 */
+	static void release(Grid g) {
+		grids.set(g);
+	}
 	
 	/**
 	 * create space
 	 * @param length size of bitmap
 	 */
 	public Space(int length) {
+		this(length, DOUBLE);
+	}
+	
+	/**
+	 * create space with a given storage type
+	 * @param length size of bitmap
+	 * @param type storage type (DOUBLE, FLOAT, DIRECT, DIRECT_DOUBLE, BYTE, SHORT), plus TILED if wanted
+	 */
+	public Space(int length, int type) {
 		this.length = length;
-		this.data = new double[length];
+		this.tiled = (type & TILED) != 0;
+		this.type = type & ~(TILED | EMPTY);
+		if (this.type == BYTE) {
+			scale = 1.0 / BYTE_MAX;
+		} else if (this.type == SHORT) {
+			scale = 1.0 / SHORT_MAX;
+		}
+		store = VALUES;
+		if ( (type & EMPTY) != 0) {
+			return;
+		}
+		switch (this.type) {
+		case FLOAT:
+			floats = new float[length];
+			store = FLOATS;
+			break;
+		case DIRECT:
+			buffer = ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			break;
+		case DIRECT_DOUBLE:
+			doubleBuffer = ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			break;
+		case BYTE:
+			bytes = new byte[length];
+			store = BYTES;
+			break;
+		case SHORT:
+			shorts = new short[length];
+			store = SHORTS;
+			break;
+		default:
+			this.type = DOUBLE;
+			data = new double[length];
+			store = DOUBLES;
+			break;
+		}
+	}
+	
+	/**
+	 * find where a point is stored
+	 * 
+	 * override in spaces with more than one layout
+	 * 
+	 * @param i index of point in row order
+	 * @return index of point in the bitmap
+	 */
+	public int index(int i) {
+		return i;
+	}
+	
+	/**
+	 * build the offsets of the points along one axis
+	 * 
+	 * for rows, pass the offset between points as inner
+	 * and TILE times that as outer. for tiles, pass the
+	 * offset between points within a tile and between
+	 * tiles along the axis.
+	 * 
+	 * @param size count of points along the axis
+	 * @param inner offset between points within a tile
+	 * @param outer offset between tiles
+	 * @return offsets table
+	 */
+	static final protected int[] offsets(int size, int inner, int outer) {
+		int[] o = new int[size];
+		for (int i = 0; i < size; i++) {
+			o[i] = (i % TILE) * inner + (i / TILE) * outer;
+		}
+		return o;
+	}
+	
+	/**
+	 * read a value from the bitmap
+	 * 
+	 * quantized values are scaled back to their range
+	 * 
+	 * @param i index of value
+	 * @return value
+	 */
+	final public double read(int i) {
+		switch (type) {
+		case FLOAT:
+			return floats[i];
+		case DIRECT:
+			return buffer.get(i);
+		case DIRECT_DOUBLE:
+			return doubleBuffer.get(i);
+		case BYTE:
+			return offset + scale * ((bytes != null ? bytes[i] : byteBuffer.get(i)) & BYTE_MAX);
+		case SHORT:
+			return offset + scale * ((shorts != null ? shorts[i] : shortBuffer.get(i)) & SHORT_MAX);
+		case LAZY:
+			return fetch(i);
+		default:
+			return data[i];
+		}
+	}
+	
+	/**
+	 * write a value to the bitmap
+	 * 
+	 * quantized values are rounded to the nearest step,
+	 * and clamped to the range that can be stored
+	 * 
+	 * @param i index of value
+	 * @param v value
+	 */
+	final public void write(int i, double v) {
+		switch (type) {
+		case FLOAT:
+			floats[i] = (float) v;
+			break;
+		case DIRECT:
+			buffer.put(i, (float) v);
+			break;
+		case DIRECT_DOUBLE:
+			doubleBuffer.put(i, v);
+			break;
+		case BYTE:
+			if (bytes != null) {
+				bytes[i] = (byte) quantum(v, BYTE_MAX);
+			} else {
+			byteBuffer.put(i, (byte) quantum(v, BYTE_MAX));
+			}
+			break;
+		case SHORT:
+			if (shorts != null) {
+				shorts[i] = (short) quantum(v, SHORT_MAX);
+			} else {
+			shortBuffer.put(i, (short) quantum(v, SHORT_MAX));
+			}
+			break;
+		case LAZY:
+			throw new UnsupportedOperationException("lazy spaces can't be written");
+		default:
+			data[i] = v;
+			break;
+		}
+	}
+	
+	/**
+	 * find a value in a space with LAZY storage
+	 * 
+	 * overridden by spaces that generate their values
+	 * 
+	 * @param i index of value
+	 * @return value
+	 */
+	double fetch(int i) {
+		throw new UnsupportedOperationException("no values to fetch");
+	}
+	
+	/**
+	 * blend the eight points around a sample of a field
+	 * 
+	 * a point is stored at the offset of its x plus the
+	 * offset of its (y, z). every value is read before
+	 * any are blended, on a path chosen by the store.
+	 * quantized values are blended raw, then scaled once.
+	 * 
+	 * @param a0, a1 offsets of the lower and upper x
+	 * @param p0, p1, p2, p3 offsets of (y0, z0), (y0, z1), (y1, z0), (y1, z1)
+	 * @param wx, wy, wz blend weights along each axis
+	 * @return blended value
+	 */
+	final double sample3(int a0, int a1, int p0, int p1, int p2, int p3, double wx, double wy, double wz) {
+		switch (store) {
+		case DOUBLES:
+			double[] d = data;
+			return mix3(d[a0 + p0], d[a0 + p1], d[a0 + p2], d[a0 + p3],
+					d[a1 + p0], d[a1 + p1], d[a1 + p2], d[a1 + p3], wx, wy, wz);
+		case FLOATS:
+			float[] f = floats;
+			return mix3(f[a0 + p0], f[a0 + p1], f[a0 + p2], f[a0 + p3],
+					f[a1 + p0], f[a1 + p1], f[a1 + p2], f[a1 + p3], wx, wy, wz);
+		case BYTES:
+			byte[] b = bytes;
+			return offset + scale * mix3(b[a0 + p0] & BYTE_MAX, b[a0 + p1] & BYTE_MAX, b[a0 + p2] & BYTE_MAX, b[a0 + p3] & BYTE_MAX,
+					b[a1 + p0] & BYTE_MAX, b[a1 + p1] & BYTE_MAX, b[a1 + p2] & BYTE_MAX, b[a1 + p3] & BYTE_MAX, wx, wy, wz);
+		case SHORTS:
+			short[] h = shorts;
+			return offset + scale * mix3(h[a0 + p0] & SHORT_MAX, h[a0 + p1] & SHORT_MAX, h[a0 + p2] & SHORT_MAX, h[a0 + p3] & SHORT_MAX,
+					h[a1 + p0] & SHORT_MAX, h[a1 + p1] & SHORT_MAX, h[a1 + p2] & SHORT_MAX, h[a1 + p3] & SHORT_MAX, wx, wy, wz);
+		default:
+			return mix3(read(a0 + p0), read(a0 + p1), read(a0 + p2), read(a0 + p3),
+					read(a1 + p0), read(a1 + p1), read(a1 + p2), read(a1 + p3), wx, wy, wz);
+		}
+	}
+	
+	/**
+	 * blend the eight points around a sample of a field,
+	 * with the differences that make up its gradient
+	 * 
+	 * @param out receives the blended value (0), and the
+	 * blended differences along x (1), y (2) and z (3)
+	 * @param a0, a1 offsets of the lower and upper x
+	 * @param p0, p1, p2, p3 offsets of (y0, z0), (y0, z1), (y1, z0), (y1, z1)
+	 * @param wx, wy, wz blend weights along each axis
+	 */
+	final void gradient3(double[] out, int a0, int a1, int p0, int p1, int p2, int p3, double wx, double wy, double wz) {
+		switch (store) {
+		case DOUBLES:
+			double[] d = data;
+			slopes3(out, d[a0 + p0], d[a0 + p1], d[a0 + p2], d[a0 + p3],
+					d[a1 + p0], d[a1 + p1], d[a1 + p2], d[a1 + p3], wx, wy, wz);
+			break;
+		case FLOATS:
+			float[] f = floats;
+			slopes3(out, f[a0 + p0], f[a0 + p1], f[a0 + p2], f[a0 + p3],
+					f[a1 + p0], f[a1 + p1], f[a1 + p2], f[a1 + p3], wx, wy, wz);
+			break;
+		case BYTES:
+			byte[] b = bytes;
+			slopes3(out, b[a0 + p0] & BYTE_MAX, b[a0 + p1] & BYTE_MAX, b[a0 + p2] & BYTE_MAX, b[a0 + p3] & BYTE_MAX,
+					b[a1 + p0] & BYTE_MAX, b[a1 + p1] & BYTE_MAX, b[a1 + p2] & BYTE_MAX, b[a1 + p3] & BYTE_MAX, wx, wy, wz);
+			dequantize(out, 4);
+			break;
+		case SHORTS:
+			short[] h = shorts;
+			slopes3(out, h[a0 + p0] & SHORT_MAX, h[a0 + p1] & SHORT_MAX, h[a0 + p2] & SHORT_MAX, h[a0 + p3] & SHORT_MAX,
+					h[a1 + p0] & SHORT_MAX, h[a1 + p1] & SHORT_MAX, h[a1 + p2] & SHORT_MAX, h[a1 + p3] & SHORT_MAX, wx, wy, wz);
+			dequantize(out, 4);
+			break;
+		default:
+			slopes3(out, read(a0 + p0), read(a0 + p1), read(a0 + p2), read(a0 + p3),
+					read(a1 + p0), read(a1 + p1), read(a1 + p2), read(a1 + p3), wx, wy, wz);
+			break;
+		}
+	}
+	
+	/**
+	 * blend a row of samples of a field, along x
+	 * 
+	 * @param out receives values
+	 * @param n index of first value within out
+	 * @param count count of samples
+	 * @param x0, x1 offsets of the lower and upper x of each sample
+	 * @param wx blend weights of each sample along x
+	 * @param p0, p1, p2, p3 offsets of (y0, z0), (y0, z1), (y1, z0), (y1, z1)
+	 * @param wy, wz blend weights along y and z
+	 * @param amp multiplier for values
+	 * @param add true to add values to out, false to replace
+	 */
+	final void row3(double[] out, int n, int count, int[] x0, int[] x1, double[] wx, int p0, int p1, int p2, int p3, double wy, double wz, double amp, boolean add) {
+		int i, a0, a1;
+		double v, bias = amp * offset;
+		if (store == BYTES || store == SHORTS) {
+			amp *= scale;
+		}
+		switch (store) {
+		case DOUBLES:
+			double[] d = data;
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = amp * mix3(d[a0 + p0], d[a0 + p1], d[a0 + p2], d[a0 + p3],
+						d[a1 + p0], d[a1 + p1], d[a1 + p2], d[a1 + p3], wx[i], wy, wz);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		case FLOATS:
+			float[] f = floats;
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = amp * mix3(f[a0 + p0], f[a0 + p1], f[a0 + p2], f[a0 + p3],
+						f[a1 + p0], f[a1 + p1], f[a1 + p2], f[a1 + p3], wx[i], wy, wz);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		case BYTES:
+			byte[] b = bytes;
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = bias + amp * mix3(b[a0 + p0] & BYTE_MAX, b[a0 + p1] & BYTE_MAX, b[a0 + p2] & BYTE_MAX, b[a0 + p3] & BYTE_MAX,
+						b[a1 + p0] & BYTE_MAX, b[a1 + p1] & BYTE_MAX, b[a1 + p2] & BYTE_MAX, b[a1 + p3] & BYTE_MAX, wx[i], wy, wz);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		case SHORTS:
+			short[] h = shorts;
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = bias + amp * mix3(h[a0 + p0] & SHORT_MAX, h[a0 + p1] & SHORT_MAX, h[a0 + p2] & SHORT_MAX, h[a0 + p3] & SHORT_MAX,
+						h[a1 + p0] & SHORT_MAX, h[a1 + p1] & SHORT_MAX, h[a1 + p2] & SHORT_MAX, h[a1 + p3] & SHORT_MAX, wx[i], wy, wz);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		default:
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = amp * mix3(read(a0 + p0), read(a0 + p1), read(a0 + p2), read(a0 + p3),
+						read(a1 + p0), read(a1 + p1), read(a1 + p2), read(a1 + p3), wx[i], wy, wz);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * blend the four points around a sample of a surface
+	 * 
+	 * as sample3(), with a point stored at the offset of
+	 * its x plus the offset of its y
+	 * 
+	 * @param a0, a1 offsets of the lower and upper x
+	 * @param p0, p1 offsets of the lower and upper y
+	 * @param wx, wy blend weights along each axis
+	 * @return blended value
+	 */
+	final double sample2(int a0, int a1, int p0, int p1, double wx, double wy) {
+		switch (store) {
+		case DOUBLES:
+			double[] d = data;
+			return mix2(d[a0 + p0], d[a0 + p1], d[a1 + p0], d[a1 + p1], wx, wy);
+		case FLOATS:
+			float[] f = floats;
+			return mix2(f[a0 + p0], f[a0 + p1], f[a1 + p0], f[a1 + p1], wx, wy);
+		case BYTES:
+			byte[] b = bytes;
+			return offset + scale * mix2(b[a0 + p0] & BYTE_MAX, b[a0 + p1] & BYTE_MAX, b[a1 + p0] & BYTE_MAX, b[a1 + p1] & BYTE_MAX, wx, wy);
+		case SHORTS:
+			short[] h = shorts;
+			return offset + scale * mix2(h[a0 + p0] & SHORT_MAX, h[a0 + p1] & SHORT_MAX, h[a1 + p0] & SHORT_MAX, h[a1 + p1] & SHORT_MAX, wx, wy);
+		default:
+			return mix2(read(a0 + p0), read(a0 + p1), read(a1 + p0), read(a1 + p1), wx, wy);
+		}
+	}
+	
+	/**
+	 * blend the four points around a sample of a surface,
+	 * with the differences that make up its gradient
+	 * 
+	 * @param out receives the blended value (0), and the
+	 * blended differences along x (1) and y (2)
+	 * @param a0, a1 offsets of the lower and upper x
+	 * @param p0, p1 offsets of the lower and upper y
+	 * @param wx, wy blend weights along each axis
+	 */
+	final void gradient2(double[] out, int a0, int a1, int p0, int p1, double wx, double wy) {
+		switch (store) {
+		case DOUBLES:
+			double[] d = data;
+			slopes2(out, d[a0 + p0], d[a0 + p1], d[a1 + p0], d[a1 + p1], wx, wy);
+			break;
+		case FLOATS:
+			float[] f = floats;
+			slopes2(out, f[a0 + p0], f[a0 + p1], f[a1 + p0], f[a1 + p1], wx, wy);
+			break;
+		case BYTES:
+			byte[] b = bytes;
+			slopes2(out, b[a0 + p0] & BYTE_MAX, b[a0 + p1] & BYTE_MAX, b[a1 + p0] & BYTE_MAX, b[a1 + p1] & BYTE_MAX, wx, wy);
+			dequantize(out, 3);
+			break;
+		case SHORTS:
+			short[] h = shorts;
+			slopes2(out, h[a0 + p0] & SHORT_MAX, h[a0 + p1] & SHORT_MAX, h[a1 + p0] & SHORT_MAX, h[a1 + p1] & SHORT_MAX, wx, wy);
+			dequantize(out, 3);
+			break;
+		default:
+			slopes2(out, read(a0 + p0), read(a0 + p1), read(a1 + p0), read(a1 + p1), wx, wy);
+			break;
+		}
+	}
+	
+	/**
+	 * blend a row of samples of a surface, along x
+	 * 
+	 * @param out receives values
+	 * @param n index of first value within out
+	 * @param count count of samples
+	 * @param x0, x1 offsets of the lower and upper x of each sample
+	 * @param wx blend weights of each sample along x
+	 * @param p0, p1 offsets of the lower and upper y
+	 * @param wy blend weight along y
+	 * @param amp multiplier for values
+	 * @param add true to add values to out, false to replace
+	 */
+	final void row2(double[] out, int n, int count, int[] x0, int[] x1, double[] wx, int p0, int p1, double wy, double amp, boolean add) {
+		int i, a0, a1;
+		double v, bias = amp * offset;
+		if (store == BYTES || store == SHORTS) {
+			amp *= scale;
+		}
+		switch (store) {
+		case DOUBLES:
+			double[] d = data;
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = amp * mix2(d[a0 + p0], d[a0 + p1], d[a1 + p0], d[a1 + p1], wx[i], wy);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		case FLOATS:
+			float[] f = floats;
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = amp * mix2(f[a0 + p0], f[a0 + p1], f[a1 + p0], f[a1 + p1], wx[i], wy);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		case BYTES:
+			byte[] b = bytes;
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = bias + amp * mix2(b[a0 + p0] & BYTE_MAX, b[a0 + p1] & BYTE_MAX, b[a1 + p0] & BYTE_MAX, b[a1 + p1] & BYTE_MAX, wx[i], wy);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		case SHORTS:
+			short[] h = shorts;
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = bias + amp * mix2(h[a0 + p0] & SHORT_MAX, h[a0 + p1] & SHORT_MAX, h[a1 + p0] & SHORT_MAX, h[a1 + p1] & SHORT_MAX, wx[i], wy);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		default:
+			for (i = 0; i < count; i++, n++) {
+				a0 = x0[i];
+				a1 = x1[i];
+				v = amp * mix2(read(a0 + p0), read(a0 + p1), read(a1 + p0), read(a1 + p1), wx[i], wy);
+				out[n] = add ? out[n] + v : v;
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * blend the two points around a sample of a line
+	 * @param a0, a1 offsets of the lower and upper x
+	 * @param w blend weight
+	 * @return blended value
+	 */
+	final double sample1(int a0, int a1, double w) {
+		switch (store) {
+		case DOUBLES:
+			return lerp(data[a0], data[a1], w);
+		case FLOATS:
+			return lerp(floats[a0], floats[a1], w);
+		case BYTES:
+			return offset + scale * lerp(bytes[a0] & BYTE_MAX, bytes[a1] & BYTE_MAX, w);
+		case SHORTS:
+			return offset + scale * lerp(shorts[a0] & SHORT_MAX, shorts[a1] & SHORT_MAX, w);
+		default:
+			return lerp(read(a0), read(a1), w);
+		}
+	}
+	
+	/**
+	 * blend a row of samples of a line
+	 * 
+	 * @param out receives values
+	 * @param n index of first value within out
+	 * @param count count of samples
+	 * @param x0, x1 offsets of the lower and upper x of each sample
+	 * @param wx blend weights of each sample
+	 * @param amp multiplier for values
+	 */
+	final void row1(double[] out, int n, int count, int[] x0, int[] x1, double[] wx, double amp) {
+		int i;
+		double bias = amp * offset;
+		if (store == BYTES || store == SHORTS) {
+			amp *= scale;
+		}
+		switch (store) {
+		case DOUBLES:
+			double[] d = data;
+			for (i = 0; i < count; i++, n++) {
+				out[n] = amp * lerp(d[x0[i]], d[x1[i]], wx[i]);
+			}
+			break;
+		case FLOATS:
+			float[] f = floats;
+			for (i = 0; i < count; i++, n++) {
+				out[n] = amp * lerp(f[x0[i]], f[x1[i]], wx[i]);
+			}
+			break;
+		case BYTES:
+			byte[] b = bytes;
+			for (i = 0; i < count; i++, n++) {
+				out[n] = bias + amp * lerp(b[x0[i]] & BYTE_MAX, b[x1[i]] & BYTE_MAX, wx[i]);
+			}
+			break;
+		case SHORTS:
+			short[] h = shorts;
+			for (i = 0; i < count; i++, n++) {
+				out[n] = bias + amp * lerp(h[x0[i]] & SHORT_MAX, h[x1[i]] & SHORT_MAX, wx[i]);
+			}
+			break;
+		default:
+			for (i = 0; i < count; i++, n++) {
+				out[n] = amp * lerp(read(x0[i]), read(x1[i]), wx[i]);
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * scale raw blended values and differences found
+	 * from quantized points back to their range
+	 * @param out blended value (0), then differences
+	 * @param n count of entries in out
+	 */
+	final void dequantize(double[] out, int n) {
+		out[0] = offset + scale * out[0];
+		for (int i = 1; i < n; i++) {
+			out[i] = scale * out[i];
+		}
+	}
+	
+	/**
+	 * quantize a value
+	 * @param v value
+	 * @param max largest quantized value
+	 * @return nearest quantized value, clamped to (0..max)
+	 */
+	final private int quantum(double v, int max) {
+		double n = (v - offset) / scale + 0.5;
+		return n <= 0 ? 0 : n >= max ? max : (int) n;
+	}
+	
+	/**
+	 * get the largest error of a stored value
+	 * 
+	 * holds for quantized values within the range of the
+	 * space. values from get() are blends of stored values,
+	 * so their error is within amplitude times this.
+	 * 
+	 * @return error bound, or zero for float and double storage
+	 */
+	public double error() {
+		return (type == BYTE || type == SHORT) ? scale / 2 : 0;
+	}
+	
+	/**
+	 * fill the space from another space of the same length
+	 * 
+	 * for quantized storage, the scale and offset are first
+	 * fitted to the range of the source, so that the whole
+	 * range can be stored with the smallest steps.
+	 * 
+	 * @param src source space, of any storage type and layout
+	 * @return largest error of any stored value
+	 * @throws IllegalArgumentException if the lengths differ
+	 */
+	public double quantize(Space src) {
+		if (src.length != length) {
+			throw new IllegalArgumentException("source length " + src.length + " doesn't match " + length);
+		}
+		if (type == BYTE || type == SHORT) {
+			double lo = Double.MAX_VALUE;
+			double hi = -Double.MAX_VALUE;
+			for (int i = 0; i < src.length; i++) {
+				double v = src.read(i);
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+			}
+			offset = lo;
+			scale = (hi > lo) ? (hi - lo) / (type == BYTE ? BYTE_MAX : SHORT_MAX) : 1;
+		}
+		
+		double err = 0;
+		boolean from = src.tiled, to = tiled;
+		for (int i = 0; i < length; i++) {
+			double v = src.read(from ? src.index(i) : i);
+			int j = to ? index(i) : i;
+			write(j, v);
+			err = Math.max(err, Math.abs(read(j) - v));
+		}
+		return err;
+	}
+	
+	/**
+	 * find the blend weight for an interpolation factor
+	 * 
+	 * COSINE is the reference, matching cerp(). TABLE looks
+	 * up the same curve, QUINTIC is a smoothstep with the
+	 * same flat ends, and LINEAR is cheapest of all.
+	 * 
+	 * @param mu interpolation factor (0..1)
+	 * @return weight of the second value (0..1)
+	 */
+	final public double blend(double mu) {
+		switch (mode) {
+		case LINEAR:
+			return mu;
+		case QUINTIC:
+			return mu * mu * mu * (mu * (mu * 6 - 15) + 10);
+		case TABLE:
+			double t = mu * TABLE_SIZE;
+			int i = (int) t;
+			return table[i] + (t - i) * (table[i + 1] - table[i]);
+		default:
+			return (1.0 - Math.cos(mu * Math.PI)) / 2.0;
+		}
+	}
+	
+	/**
+	 * determine if a dimension is a power of two
+	 * @param n dimension
+	 * @return true if n is a power of two
+	 */
+	static final protected boolean isPowerOfTwo(int n) {
+		return n > 0 && (n & (n - 1)) == 0;
+	}
+	
+	/**
+	 * wrap a coordinate into the range (0..size)
+	 * 
+	 * for power of two sizes, the quotient and product
+	 * are exact, so this matches the modulus bit for bit
+	 * 
+	 * @param t coordinate
+	 * @param size count of bitmap points along the axis
+	 * @return wrapped coordinate
+	 */
+	final protected double wrap(double t, int size) {
+		double f = pow2 ? t - size * (double) (long) (t / size) : t % size;
+		if (f < 0) {
+			f += size;
+			// tiny negative values can round up to size
+			if (f >= size) {
+				f = 0;
+			}
+		}
+		return f;
+	}
+	
+	/**
+	 * wrap twice a coordinate that has already been wrapped
+	 * 
+	 * for a coordinate of zero or more, this matches wrapping
+	 * twice the original coordinate bit for bit, as doubling
+	 * and the subtraction are exact, without the division.
+	 * 
+	 * @param f wrapped coordinate (0..size)
+	 * @param size count of bitmap points along the axis
+	 * @return wrapped coordinate
+	 */
+	static final protected double twice(double f, int size) {
+		f += f;
+		// subtract size if f reaches it, without a branch, as
+		// a doubled point is as likely to wrap as not
+		return f - (size & ((size - 1 - (int) f) >> 31));
+	}
+	
+	/**
+	 * find the next bitmap point along an axis, with wrapping
+	 * @param i bitmap point
+	 * @param size count of bitmap points along the axis
+	 * @return next bitmap point
+	 */
+	final protected int next(int i, int size) {
+		return pow2 ? (i + 1) & (size - 1) : (i + 1) % size;
+	}
+	
+	/**
+	 * find the bitmap points and blend weights for
+	 * each sample along one axis of a regular grid
+	 * 
+	 * @param p0 receives offset of the lower point of each sample
+	 * @param p1 receives offset of the upper point
+	 * @param w receives blend weight of the upper point
+	 * @param x coordinate of first sample
+	 * @param dx spacing between samples
+	 * @param n count of samples
+	 * @param period period of the axis
+	 * @param size count of bitmap points along the axis
+	 * @param offsets offsets of bitmap points along the axis
+	 */
+	final protected void axis(int[] p0, int[] p1, double[] w, double x, double dx, int n, double period, int size, int[] offsets) {
+		for (int i = 0; i < n; i++) {
+			double f = wrap(period * (x + i * dx), size);
+			int i0 = (int) f;
+			p0[i] = offsets[i0];
+			p1[i] = offsets[next(i0, size)];
+			w[i] = blend(f - i0);
+		}
+	}
+	
+	/**
+	 * find the rate of change of the blend weight
+	 * @param mu interpolation factor (0..1)
+	 * @return derivative of blend(mu) with respect to mu
+	 */
+	final public double slope(double mu) {
+		switch (mode) {
+		case LINEAR:
+			return 1;
+		case QUINTIC:
+			return 30 * mu * mu * (mu - 1) * (mu - 1);
+		case TABLE:
+			int i = (int) (mu * TABLE_SIZE);
+			return (table[i + 1] - table[i]) * TABLE_SIZE;
+		default:
+			return Math.sin(mu * Math.PI) * Math.PI / 2.0;
+		}
+	}
+	
+	/**
+	 * linear interpolation
+	 * @param y1, y2 values to interpolate between
+	 * @param w weight of y2 (0..1), from blend()
+	 * @return interpolated value
+	 */
+	static final public double lerp(double y1, double y2, double w) {
+		return (y1 * (1.0 - w) + y2 * w);
+	}
+	
+	/**
+	 * blend the corners of a cube, along z, then y, then x
+	 * @param c000 ... c111 values at each corner, by x, y and z
+	 * @param wx, wy, wz blend weights along each axis
+	 * @return blended value
+	 */
+	static final double mix3(double c000, double c001, double c010, double c011,
+			double c100, double c101, double c110, double c111, double wx, double wy, double wz) {
+		double i3 = lerp(lerp(c000, c001, wz), lerp(c010, c011, wz), wy);
+		double i4 = lerp(lerp(c100, c101, wz), lerp(c110, c111, wz), wy);
+		return lerp(i3, i4, wx);
+	}
+	
+	/**
+	 * blend the corners of a cube, with the differences
+	 * along each axis that make up its gradient
+	 * @param out receives the blended value (0), and the
+	 * blended differences along x (1), y (2) and z (3)
+	 * @param c000 ... c111 values at each corner, by x, y and z
+	 * @param wx, wy, wz blend weights along each axis
+	 */
+	static final void slopes3(double[] out, double c000, double c001, double c010, double c011,
+			double c100, double c101, double c110, double c111, double wx, double wy, double wz) {
+		double a0 = lerp(c000, c001, wz);
+		double a1 = lerp(c010, c011, wz);
+		double b0 = lerp(c100, c101, wz);
+		double b1 = lerp(c110, c111, wz);
+		double i3 = lerp(a0, a1, wy);
+		double i4 = lerp(b0, b1, wy);
+		out[0] = lerp(i3, i4, wx);
+		out[1] = i4 - i3;
+		out[2] = lerp(a1 - a0, b1 - b0, wx);
+		out[3] = lerp(lerp(c001 - c000, c011 - c010, wy), lerp(c101 - c100, c111 - c110, wy), wx);
+	}
+	
+	/**
+	 * blend the corners of a square, along y, then x
+	 * @param c00 ... c11 values at each corner, by x and y
+	 * @param wx, wy blend weights along each axis
+	 * @return blended value
+	 */
+	static final double mix2(double c00, double c01, double c10, double c11, double wx, double wy) {
+		return lerp(lerp(c00, c01, wy), lerp(c10, c11, wy), wx);
+	}
+	
+	/**
+	 * blend the corners of a square, with the differences
+	 * along each axis that make up its gradient
+	 * @param out receives the blended value (0), and the
+	 * blended differences along x (1) and y (2)
+	 * @param c00 ... c11 values at each corner, by x and y
+	 * @param wx, wy blend weights along each axis
+	 */
+	static final void slopes2(double[] out, double c00, double c01, double c10, double c11, double wx, double wy) {
+		double i1 = lerp(c00, c01, wy);
+		double i2 = lerp(c10, c11, wy);
+		out[0] = lerp(i1, i2, wx);
+		out[1] = i2 - i1;
+		out[2] = lerp(c01 - c00, c11 - c10, wx);
+	}
+	
+	/**
+	 * get the amplitude and periods of the space
+	 * 
+	 * overridden by each kind of space
+	 * 
+	 * @return amplitude, then period along each axis
+	 */
+	double[] params() {
+		return new double[4];
+	}
+	
+	/**
+	 * get the kind and dimensions of the space
+	 * 
+	 * overridden by each kind of space that can be saved
+	 * 
+	 * @return kind (LINE, SURFACE, FIELD), then width, height
+	 * and depth, or null if the space can't be saved
+	 */
+	int[] shape() {
+		return null;
+	}
+	
+	/**
+	 * write the space to a file
+	 * 
+	 * the file holds a header describing the space and the
+	 * bitmap as it's stored, with float storage written as
+	 * floats, double storage as doubles, and quantized data
+	 * as is, with its scale and offset. data is written
+	 * little-endian, which is native on Android devices.
+	 * 
+	 * @param file file to write
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		int[] shape = shape();
+		if (shape == null) {
+			throw new IOException("can't save this kind of space");
+		}
+		int element;
+		switch (type) {
+		case DOUBLE:
+		case DIRECT_DOUBLE:
+		case LAZY:
+			element = DOUBLE;
+			break;
+		case BYTE:
+		case SHORT:
+			element = type;
+			break;
+		default:
+			element = FLOAT;
+			break;
+		}
+		double[] p = params();
+		
+		ByteBuffer b = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(MAGIC);
+		b.putInt(VERSION);
+		b.putInt(shape[0]);
+		b.putInt(element);
+		b.putInt(tiled ? TILED : 0);
+		b.putInt(mode);
+		b.putInt(shape[1]);
+		b.putInt(shape[2]);
+		b.putInt(shape[3]);
+		b.position(40);
+		for (int i = 0; i < 4; i++) {
+			b.putDouble(p[i]);
+		}
+		b.putDouble(scale);
+		b.putDouble(offset);
+		b.position(HEADER);
+		
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel ch = out.getChannel();
+			for (int i = 0; i < length; i++) {
+				if (b.remaining() < 8) {
+					b.flip();
+					while (b.hasRemaining()) {
+						ch.write(b);
+					}
+					b.clear();
+				}
+				switch (element) {
+				case DOUBLE:
+					b.putDouble(read(i));
+					break;
+				case BYTE:
+					b.put(bytes != null ? bytes[i] : byteBuffer.get(i));
+					break;
+				case SHORT:
+					b.putShort(shorts != null ? shorts[i] : shortBuffer.get(i));
+					break;
+				default:
+					b.putFloat( (float) read(i));
+					break;
+				}
+			}
+			b.flip();
+			while (b.hasRemaining()) {
+				ch.write(b);
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * map a space from a file written by save()
+	 * 
+	 * the bitmap isn't read into memory; it's mapped from
+	 * the file into a direct buffer, and pages are read in
+	 * as they're used. the mapping is private, so writing
+	 * to the space doesn't change the file. if the file is
+	 * read-only, so is the space.
+	 * 
+	 * the header is read and checked before anything is
+	 * mapped, and the file must be exactly as long as the
+	 * header says, so a corrupt or truncated file fails
+	 * here rather than when the space is sampled.
+	 * 
+	 * @param file file to read
+	 * @return the space, a Line, Surface, or Field
+	 * @throws IOException if the file can't be read, or isn't
+	 * a well-formed space file
+	 */
+	public static Space load(File file) throws IOException {
+		// a private mapping needs a writable file, though it never writes to it
+		boolean writable = file.canWrite();
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if (ch.size() < HEADER) {
+				throw new IOException("space file is truncated: " + file);
+			}
+			ByteBuffer head = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (head.hasRemaining()) {
+				if (ch.read(head) < 0) {
+					throw new IOException("space file is truncated: " + file);
+				}
+			}
+			head.flip();
+			if (head.getInt() != MAGIC || head.getInt() != VERSION) {
+				throw new IOException("not a space file: " + file);
+			}
+			int kind = head.getInt();
+			int element = head.getInt();
+			int flags = head.getInt();
+			int mode = head.getInt();
+			int w = head.getInt();
+			int h = head.getInt();
+			int d = head.getInt();
+			head.position(40);
+			double amp = head.getDouble();
+			double xp = head.getDouble();
+			double yp = head.getDouble();
+			double zp = head.getDouble();
+			double scale = head.getDouble();
+			double offset = head.getDouble();
+			
+			int type, bytes;
+			switch (element) {
+			case DOUBLE:
+				type = DIRECT_DOUBLE;
+				bytes = 8;
+				break;
+			case FLOAT:
+				type = DIRECT;
+				bytes = 4;
+				break;
+			case BYTE:
+				type = BYTE;
+				bytes = 1;
+				break;
+			case SHORT:
+				type = SHORT;
+				bytes = 2;
+				break;
+			default:
+				throw new IOException("unknown element type " + element + ": " + file);
+			}
+			
+			// dimensions past those of the kind must be 1, as save() writes them
+			boolean shaped;
+			switch (kind) {
+			case LINE:
+				shaped = w > 0 && h == 1 && d == 1;
+				break;
+			case SURFACE:
+				shaped = w > 0 && h > 0 && d == 1;
+				break;
+			case FIELD:
+				shaped = w > 0 && h > 0 && d > 0;
+				break;
+			default:
+				throw new IOException("unknown kind of space " + kind + ": " + file);
+			}
+			if (!shaped) {
+				throw new IOException("bad dimensions " + w + " x " + h + " x " + d + ": " + file);
+			}
+			if (mode < COSINE || mode > TABLE) {
+				throw new IOException("unknown blend mode " + mode + ": " + file);
+			}
+			
+			long count = (long) w * h * d;
+			long size = count * bytes;
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("space is too large to map: " + file);
+			}
+			if (ch.size() != HEADER + size) {
+				throw new IOException("space file is " + ch.size() + " bytes, not " + (HEADER + size) + ": " + file);
+			}
+			
+			type |= (flags & TILED) | EMPTY;
+			Space s;
+			switch (kind) {
+			case LINE:
+				s = new Line(w, amp, xp, type);
+				break;
+			case SURFACE:
+				s = new Surface(w, h, amp, xp, yp, type);
+				break;
+			default:
+				s = new Field(w, h, d, amp, xp, yp, zp, type);
+				break;
+			}
+			
+			ByteBuffer body = ch.map(writable ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY, HEADER, size);
+			body.order(ByteOrder.LITTLE_ENDIAN);
+			switch (element) {
+			case DOUBLE:
+				s.doubleBuffer = body.asDoubleBuffer();
+				break;
+			case FLOAT:
+				s.buffer = body.asFloatBuffer();
+				break;
+			case BYTE:
+				s.byteBuffer = body;
+				s.scale = scale;
+				s.offset = offset;
+				break;
+			case SHORT:
+				s.shortBuffer = body.asShortBuffer();
+				s.scale = scale;
+				s.offset = offset;
+				break;
+			}
+			s.mode = mode;
+			return s;
+		} finally {
+			// the mapping remains valid after the file is closed
+			raf.close();
+		}
 	}
 	
 	/**
@@ -14,6 +14,9 @@ public class Surface extends Space {
 	private double xPeriod;
 	private double yPeriod;
 	
+	// offsets of points along each axis
+	private int[] xo, yo;
+	
 	/**
 	 * constructor, create surface
 	 * 
@@ -24,13 +27,29 @@ public class Surface extends Space {
 	 * @param xpr, ypr period
 	 */
 	public Surface(int width, int height, double amp, double xpr, double ypr) {
-		super(width * height);
+		this(width, height, amp, xpr, ypr, DOUBLE);
+	}
+	
+	/**
+	 * constructor, create surface with a given storage type
+	 * 
+	 * use this constructor for heightmaps
+	 * 
+	 * @param width, height dimensions of surface
+	 * @param amp amplitude
+	 * @param xpr, ypr period
+	 * @param type storage type (see Space)
+	 */
+	public Surface(int width, int height, double amp, double xpr, double ypr, int type) {
+		super(width * height, type);
 		
 		this.width = width;
 		this.height = height;
 		this.amplitude = amp;
 		this.xPeriod = xpr;
 		this.yPeriod = ypr;
+		this.pow2 = isPowerOfTwo(width) && isPowerOfTwo(height);
+		layout();
 	}
 
 	/**
@@ -41,11 +60,77 @@ public class Surface extends Space {
 	 * @param width, height dimensions of surface
 	 */
 	public Surface(int width, int height) {
-		super(width * height);
+		this(width, height, DOUBLE);
+	}
+	
+	/**
+	 * constructor, create surface with a given storage type
+	 * 
+	 * use this constructor for textures
+	 * 
+	 * @param width, height dimensions of surface
+	 * @param type storage type (see Space)
+	 */
+	public Surface(int width, int height, int type) {
+		super(width * height, type);
 		
 		this.width = width;
 		this.height = height;
 		amplitude = xPeriod = yPeriod = 0;
+		pow2 = isPowerOfTwo(width) && isPowerOfTwo(height);
+		layout();
+	}
+	
+	/**
+	 * build offset tables for the storage layout
+	 */
+	private void layout() {
+		// tiles must fit the surface exactly
+		if (width % TILE != 0 || height % TILE != 0) {
+			tiled = false;
+		}
+		if (tiled) {
+			int square = TILE * TILE;
+			xo = offsets(width, 1, square);
+			yo = offsets(height, TILE, square * (width / TILE));
+		} else {
+			xo = offsets(width, 1, TILE);
+			yo = offsets(height, width, width * TILE);
+		}
+	}
+	
+	/**
+	 * get the amplitude and periods of the surface
+	 * @return amplitude, then period along each axis
+	 */
+	double[] params() {
+		return new double[] { amplitude, xPeriod, yPeriod, 0 };
+	}
+	
+	/**
+	 * get the kind and dimensions of the surface
+	 * @return kind, then width, height and depth
+	 */
+	int[] shape() {
+		return new int[] { SURFACE, width, height, 1 };
+	}
+	
+	/**
+	 * find where a point is stored
+	 * @param x, y coordinates of point (must be in range)
+	 * @return index of point in the bitmap
+	 */
+	public int index(int x, int y) {
+		return xo[x] + yo[y];
+	}
+	
+	/**
+	 * find where a point is stored
+	 * @param i index of point in row order
+	 * @return index of point in the bitmap
+	 */
+	public int index(int i) {
+		return xo[i % width] + yo[i / width];
 	}
 	
 	/**
@@ -54,28 +139,141 @@ public class Surface extends Space {
 	 * @return value at (x, y)
 	 */
 	public double get(double x, double y) {
+		return at(wrap(xPeriod * x, width), wrap(yPeriod * y, height));
+	}
+	
+	/**
+	 * get value at a point already wrapped into the surface
+	 * @param xf, yf wrapped coordinates, as from wrap()
+	 * @return value at the point
+	 */
+	double at(double xf, double yf) {
 
-		double xf = (xPeriod * x) % width;
-		if (xf < 0) {
-			xf += width;
-		}
-		int xi0 = (int) Math.floor(xf);
+		int xi0 = (int) xf;
 		double mux = xf - xi0;
 
-		double yf = (yPeriod * y) % height;
-		if (yf < 0) {
-			yf += height;
-		}
-		int yi0 = (int) Math.floor(yf);
+		int yi0 = (int) yf;
+		double muy = yf - yi0;
+
+		int xi1 = next(xi0, width);
+		int yi1 = next(yi0, height);
+		int x0m = xo[xi0];
+		int x1m = xo[xi1];
+		int y0m = yo[yi0];
+		int y1m = yo[yi1];
+
+		double wx = blend(mux);
+		double wy = blend(muy);
+
+		return amplitude * sample2(x0m, x1m, y0m, y1m, wx, wy);
+	}
+	
+	/**
+	 * get value and gradient at (x, y)
+	 * 
+	 * the gradient is found analytically from the same
+	 * four points used for the value, which is the same
+	 * value that get() returns
+	 * 
+	 * @param out receives value (0) and partial derivatives
+	 * with respect to x (1) and y (2)
+	 * @param x, y
+	 */
+	public void getWithGradient(double[] out, double x, double y) {
+
+		double xf = wrap(xPeriod * x, width);
+		int xi0 = (int) xf;
+		double mux = xf - xi0;
+
+		double yf = wrap(yPeriod * y, height);
+		int yi0 = (int) yf;
 		double muy = yf - yi0;
 
-		int xi1 = (xi0 + 1) % width;
-		int yi1 = (yi0 + 1) % height;
-		int y0m = yi0 * width;
-		int y1m = yi1 * width;
+		int xi1 = next(xi0, width);
+		int yi1 = next(yi0, height);
+		int x0m = xo[xi0];
+		int x1m = xo[xi1];
+		int y0m = yo[yi0];
+		int y1m = yo[yi1];
 
-		double i1 = Space.cerp(data[xi0 + y0m], data[xi0 + y1m], muy);
-		double i2 = Space.cerp(data[xi1 + y0m], data[xi1 + y1m], muy);
-		return amplitude * Space.cerp(i1, i2, mux);	
+		double wx = blend(mux);
+		double wy = blend(muy);
+		
+		gradient2(out, x0m, x1m, y0m, y1m, wx, wy);
+		out[0] = amplitude * out[0];
+		out[1] = amplitude * xPeriod * slope(mux) * out[1];
+		out[2] = amplitude * yPeriod * slope(muy) * out[2];
+	}
+	
+	/**
+	 * get values over a regular grid of points
+	 * 
+	 * out[offset + i + nx * j] receives the value at
+	 * (x + i * dx, y + j * dy), the same value get() returns.
+	 * wrapping and blend weights are found once for each
+	 * row and column instead of once for every point.
+	 * 
+	 * @param out receives values
+	 * @param offset index of first value within out
+	 * @param x, y first point
+	 * @param dx, dy spacing between points
+	 * @param nx, ny count of points along each axis
+	 */
+	public void get(double[] out, int offset, double x, double y, double dx, double dy, int nx, int ny) {
+		Grid g = borrow(nx, ny, 0);
+		axes(g, x, y, dx, dy);
+		grid(g, out, offset, false);
+		release(g);
+	}
+	
+	/**
+	 * determine if another surface samples the same
+	 * bitmap points with the same weights as this one
+	 * @param s surface
+	 * @return true if axes found for one apply to both
+	 */
+	boolean aligned(Surface s) {
+		return s.width == width && s.height == height && s.tiled == tiled && s.mode == mode &&
+				s.xPeriod == xPeriod && s.yPeriod == yPeriod;
+	}
+	
+	/**
+	 * use the offset tables of another surface if it has
+	 * the same dimensions and layout, and so the same offsets
+	 * @param s surface
+	 * @return true if the tables are now shared
+	 */
+	boolean share(Surface s) {
+		if (s.width != width || s.height != height || s.tiled != tiled) {
+			return false;
+		}
+		xo = s.xo;
+		yo = s.yo;
+		return true;
+	}
+	
+	/**
+	 * find the bitmap points and blend weights of a grid
+	 * @param g grid
+	 * @param x, y first point
+	 * @param dx, dy spacing between points
+	 */
+	void axes(Grid g, double x, double y, double dx, double dy) {
+		axis(g.x0, g.x1, g.wx, x, dx, g.nx, xPeriod, width, xo);
+		axis(g.y0, g.y1, g.wy, y, dy, g.ny, yPeriod, height, yo);
+	}
+	
+	/**
+	 * get values over a grid whose axes have been found
+	 * @param g grid
+	 * @param out receives values
+	 * @param offset index of first value within out
+	 * @param add true to add values to out, false to replace
+	 */
+	void grid(Grid g, double[] out, int offset, boolean add) {
+		int j, n = offset;
+		for (j = 0; j < g.ny; j++, n += g.nx) {
+			row2(out, n, g.nx, g.x0, g.x1, g.wx, g.y0[j], g.y1[j], g.wy[j], amplitude, add);
+		}
 	}
 }
@@ -0,0 +1,220 @@
+package com.wordsaretoys.soar;
+
+import java.util.ArrayList;
+
+/**
+ * Java implementation of the naive surface nets algorithm
+ * based on http://0fps.net/2012/07/12/smooth-voxel-terrain-part-2/
+ * 
+ * a dual method: each cube that the isosurface passes through
+ * gets a single vertex, placed at the mean of its edge crossings,
+ * and each lattice edge that the surface crosses becomes a quad
+ * joining the vertexes of the four cubes around it. this gives
+ * about as many triangles as marching cubes, but without the
+ * thin slivers (see SurfaceNetBenchmark in the test folder).
+ * 
+ * to use, create an instance of the class and override the
+ * field method (and optionally the batch form of field) with
+ * your own function, as with CubeMarch. call run() to generate
+ * indexed meshes.
+ * 
+ * @author chris
+ *
+ */
+public class SurfaceNet extends Lattice {
+	
+	// pairs of cube corners joined by each edge. bits 0, 1 & 2
+	// of a corner index are its offsets along x, y & z
+	final static private int cubeEdges[] = {
+		0, 1,  2, 3,  4, 5,  6, 7,
+		0, 2,  1, 3,  4, 6,  5, 7,
+		0, 4,  1, 5,  2, 6,  3, 7
+	};
+	
+	// marks a cube that the surface doesn't pass through
+	final static private int NO_VERTEX = -2;
+	
+	/**
+	 * constructor, does nothing much
+	 */
+	public SurfaceNet() {
+	}
+	
+	/**
+	 * find the vertex of a cube, adding it to
+	 * the current mesh if it isn't there yet
+	 * 
+	 * @param m state of the run
+	 * @param ids vertex ids for a plane of cubes
+	 * @param pos vertex positions for a plane of cubes
+	 * @param c index of the cube within the plane
+	 * @return index of vertex within the current mesh
+	 */
+	private int vertex(Meshes m, int[] ids, double[] pos, int c) {
+		int id = ids[c];
+		if (id < m.base) {
+			m.mesh.set(pos[c * 3], pos[c * 3 + 1], pos[c * 3 + 2]);
+			id = m.total++;
+			ids[c] = id;
+		}
+		return id - m.base;
+	}
+	
+	/**
+	 * executes the surface nets algorithm
+	 * 
+	 * the field is sampled once per lattice point, a plane
+	 * at a time, as in CubeMarch. vertex ids and positions
+	 * are kept for the current and previous planes of cubes,
+	 * which is all that the quads of each cube refer to.
+	 * when a mesh fills up all of its 16-bit indexes, a new
+	 * one is requested from mesh(). each vertex is written by
+	 * a single call to set(x, y, z), so meshes should have a
+	 * stride of 3.
+	 * 
+	 * @param start starting corner of the cube volume
+	 * @param finish ending corner
+	 * @param step length of each cube
+	 * @param thresh isosurface threshold
+	 * @return list of generated meshes
+	 */
+	public ArrayList<Mesh> run(Vector start, Vector finish, double step, double thresh) {
+		
+		double[] s0, s1, st, p0, p1, pt;
+		int[] c0, c1, ct;
+		double[] f = new double[8];
+		int[] q = new int[4];
+		int i, j, k, n, c, e, d, mask;
+		
+		Meshes m = new Meshes();
+		
+		int il = count(start.x, finish.x, step);
+		int jl = count(start.y, finish.y, step);
+		int kl = count(start.z, finish.z, step);
+		if (il == 0 || jl == 0 || kl == 0)
+			return m.list;
+		
+		// sample slab row length and size
+		int kw = kl + 1;
+		int sl = (jl + 1) * kw;
+		
+		s0 = new double[sl];
+		s1 = new double[sl];
+		sample(s0, start.x, start.y, start.z, step, jl, kl);
+		
+		// vertex ids and positions for the previous and current cube planes
+		c0 = new int[jl * kl];
+		c1 = new int[jl * kl];
+		p0 = new double[jl * kl * 3];
+		p1 = new double[jl * kl * 3];
+		
+		for (i = 0; i < il; i++) {
+			double x0 = start.x + i * step;
+			sample(s1, start.x + (i + 1) * step, start.y, start.z, step, jl, kl);
+			
+			for (j = 0; j < jl; j++) {
+				double y0 = start.y + j * step;
+				for (k = 0, n = j * kw, c = j * kl; k < kl; k++, n++, c++) {
+					double z0 = start.z + k * step;
+					
+					f[0] = s0[n];
+					f[1] = s1[n];
+					f[2] = s0[n + kw];
+					f[3] = s1[n + kw];
+					f[4] = s0[n + 1];
+					f[5] = s1[n + 1];
+					f[6] = s0[n + kw + 1];
+					f[7] = s1[n + kw + 1];
+					
+					mask = 0;
+					for (e = 0; e < 8; e++) {
+						mask |= (f[e] < thresh) ? (1 << e) : 0;
+					}
+					
+					// surface does not penetrate cube, no vertex for you
+					if (mask == 0 || mask == 255) {
+						c1[c] = NO_VERTEX;
+						continue;
+					}
+					
+					// place the vertex at the mean of the edge crossings
+					double vx = 0, vy = 0, vz = 0;
+					int crossings = 0;
+					for (e = 0; e < 24; e += 2) {
+						int a = cubeEdges[e], b = cubeEdges[e + 1];
+						if ( ((mask >> a) & 1) == ((mask >> b) & 1) )
+							continue;
+						double mu = (thresh - f[a]) / (f[b] - f[a]);
+						vx += (a & 1) + mu * ((b & 1) - (a & 1));
+						vy += ((a >> 1) & 1) + mu * (((b >> 1) & 1) - ((a >> 1) & 1));
+						vz += ((a >> 2) & 1) + mu * (((b >> 2) & 1) - ((a >> 2) & 1));
+						crossings++;
+					}
+					p1[c * 3] = x0 + step * vx / crossings;
+					p1[c * 3 + 1] = y0 + step * vy / crossings;
+					p1[c * 3 + 2] = z0 + step * vz / crossings;
+					c1[c] = -1;
+					
+					// each edge leaving the lowest corner of the cube is shared
+					// with three cubes behind this one. if the surface crosses
+					// it, join the vertexes of all four cubes with a quad.
+					for (d = 0; d < 3; d++) {
+						if ( (mask & 1) == ((mask >> (1 << d)) & 1) )
+							continue;
+						
+						// the cubes behind this one along the other two axes
+						if (d == 0 && (j == 0 || k == 0))
+							continue;
+						if (d != 0 && (i == 0 || (d == 1 ? k == 0 : j == 0)))
+							continue;
+						
+						// start a new mesh if this quad might overflow the current one
+						m.reserve(this, 4);
+						
+						q[0] = vertex(m, c1, p1, c);
+						if (d == 0) {
+							// x edge: cubes behind along y and z
+							q[1] = vertex(m, c1, p1, c - kl);
+							q[2] = vertex(m, c1, p1, c - kl - 1);
+							q[3] = vertex(m, c1, p1, c - 1);
+						} else if (d == 1) {
+							// y edge: cubes behind along z and x
+							q[1] = vertex(m, c1, p1, c - 1);
+							q[2] = vertex(m, c0, p0, c - 1);
+							q[3] = vertex(m, c0, p0, c);
+						} else {
+							// z edge: cubes behind along x and y
+							q[1] = vertex(m, c0, p0, c);
+							q[2] = vertex(m, c0, p0, c - kl);
+							q[3] = vertex(m, c1, p1, c - kl);
+						}
+						
+						// wind the quad as CubeMarch does, facing toward higher field values
+						if ( (mask & 1) != 0) {
+							m.mesh.index(q[0], q[1], q[2]);
+							m.mesh.index(q[0], q[2], q[3]);
+						} else {
+							m.mesh.index(q[0], q[2], q[1]);
+							m.mesh.index(q[0], q[3], q[2]);
+						}
+					}
+				}
+			}
+			
+			// the far plane becomes the near plane
+			st = s0;
+			s0 = s1;
+			s1 = st;
+			
+			// the current cube plane becomes the previous one
+			ct = c0;
+			c0 = c1;
+			c1 = ct;
+			pt = p0;
+			p0 = p1;
+			p1 = pt;
+		}
+		
+		return m.list;
+	}
+}
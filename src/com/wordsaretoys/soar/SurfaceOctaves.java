@@ -0,0 +1,131 @@
+package com.wordsaretoys.soar;
+
+import java.util.Arrays;
+
+/**
+ * sums a stack of surfaces, such as the octaves of
+ * a fractal noise function, in one call
+ * 
+ * as FieldOctaves, in two dimensions. the grid form
+ * of get() is the fast path. surfaces of the same
+ * dimensions and layout share their offset tables, and
+ * a surface of the same dimensions as the one before it
+ * reuses or doubles its wrapped point where the periods
+ * are equal or twice as large. values are the same as
+ * summing each surface's get().
+ * 
+ * @author chris
+ *
+ */
+public class SurfaceOctaves {
+	
+	private Surface[] surfaces;
+	private double[] periods;
+	private int[] links;
+	
+	/**
+	 * create a stack of surfaces
+	 * 
+	 * surfaces of the same dimensions and layout are made
+	 * to share one set of offset tables, as FieldOctaves.
+	 * 
+	 * @param surfaces surfaces to sum
+	 */
+	public SurfaceOctaves(Surface... surfaces) {
+		this.surfaces = surfaces;
+		periods = new double[surfaces.length * 2];
+		links = new int[surfaces.length];
+		for (int i = 0, il = surfaces.length; i < il; i++) {
+			Surface s = surfaces[i];
+			System.arraycopy(s.params(), 1, periods, i * 2, 2);
+			if (i > 0) {
+				links[i] = link(surfaces[i - 1], s, i * 2 - 2);
+			}
+			for (int j = 0; j < i; j++) {
+				if (s.share(surfaces[j])) {
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * find how a surface's wrapped point follows from the
+	 * one found by the surface before it
+	 * @param a surface before
+	 * @param b surface
+	 * @param k index of the periods of surface a
+	 * @return WRAP, SAME or TWICE, as FieldOctaves
+	 */
+	private int link(Surface a, Surface b, int k) {
+		if (a.width != b.width || a.height != b.height) {
+			return FieldOctaves.WRAP;
+		}
+		double[] p = periods;
+		if (p[k] == p[k + 2] && p[k + 1] == p[k + 3]) {
+			return FieldOctaves.SAME;
+		}
+		if (p[k] > 0 && p[k + 1] > 0 && 2 * p[k] == p[k + 2] && 2 * p[k + 1] == p[k + 3]) {
+			return FieldOctaves.TWICE;
+		}
+		return FieldOctaves.WRAP;
+	}
+	
+	/**
+	 * get the sum of the surfaces at (x, y)
+	 * @param x, y
+	 * @return sum of values at (x, y)
+	 */
+	public double get(double x, double y) {
+		// doubling matches wrapping only from zero upward
+		boolean up = x >= 0 && y >= 0;
+		double xf = 0, yf = 0, v = 0;
+		for (int i = 0, k = 0, il = surfaces.length; i < il; i++, k += 2) {
+			Surface s = surfaces[i];
+			switch (links[i]) {
+			case FieldOctaves.SAME:
+				break;
+			case FieldOctaves.TWICE:
+				if (up) {
+					xf = Space.twice(xf, s.width);
+					yf = Space.twice(yf, s.height);
+					break;
+				}
+				// otherwise wrap as usual
+			default:
+				xf = s.wrap(periods[k] * x, s.width);
+				yf = s.wrap(periods[k + 1] * y, s.height);
+				break;
+			}
+			v += s.at(xf, yf);
+		}
+		return v;
+	}
+	
+	/**
+	 * get the sum of the surfaces over a regular grid of points
+	 * 
+	 * the layout of out is as for Surface.get()
+	 * 
+	 * @param out receives values
+	 * @param offset index of first value within out
+	 * @param x, y first point
+	 * @param dx, dy spacing between points
+	 * @param nx, ny count of points along each axis
+	 */
+	public void get(double[] out, int offset, double x, double y, double dx, double dy, int nx, int ny) {
+		if (surfaces.length == 0) {
+			Arrays.fill(out, offset, offset + nx * ny, 0);
+			return;
+		}
+		Space.Grid g = Space.borrow(nx, ny, 0);
+		for (int i = 0, il = surfaces.length; i < il; i++) {
+			Surface s = surfaces[i];
+			if (i == 0 || !s.aligned(surfaces[i - 1])) {
+				s.axes(g, x, y, dx, dy);
+			}
+			s.grid(g, out, offset, i > 0);
+		}
+		Space.release(g);
+	}
+}
@@ -32,10 +32,10 @@ public class Texture {
 	public boolean build(Surface surf) {
 		// create and populate a byte buffer
 		int length = surf.length;
-		double[] data = surf.data;
 		ByteBuffer bb = ByteBuffer.allocateDirect(length);
+		boolean tiled = surf.tiled;
 		for (int i = 0; i < length; i++) {
-			bb.put( (byte)(data[i] * 256) );
+			bb.put( (byte)(surf.read(tiled ? surf.index(i) : i) * 256) );
 		}
 		
 		// build into a texture
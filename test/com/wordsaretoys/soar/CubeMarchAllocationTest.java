@@ -0,0 +1,62 @@
+package com.wordsaretoys.soar;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * checks that CubeMarch.run() with a mesh allocates
+ * next to nothing per vertex
+ * 
+ * marches a field of about a million triangles into a
+ * mesh twice, resetting the mesh in between so that the
+ * second run needs no mesh growth, and measures the bytes
+ * the thread allocates during the second run.
+ * 
+ * runs on a desktop JVM that supports thread allocation
+ * counts (HotSpot), with android.jar on the classpath.
+ * exits with an error if the ceiling is exceeded.
+ * 
+ * @author chris
+ *
+ */
+public class CubeMarchAllocationTest {
+	
+	// most bytes that may be allocated per vertex
+	final static double CEILING = 1.0;
+	
+	// least triangles the field must produce
+	final static int TRIANGLES = 1000000;
+	
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		
+		// rippled planes, crossing the threshold many times over
+		CubeMarch march = new CubeMarch() {
+			public double field(double x, double y, double z) {
+				return Math.sin(x * 0.4) + Math.sin(y * 0.4) + Math.sin(z * 0.4);
+			}
+		};
+		Vector start = new Vector(0, 0, 0);
+		Vector finish = new Vector(160, 160, 160);
+		Mesh mesh = new Mesh();
+		
+		march.run(start, finish, 1, 0.1, mesh);
+		mesh.reset();
+		
+		long before = bean.getThreadAllocatedBytes(id);
+		march.run(start, finish, 1, 0.1, mesh);
+		long after = bean.getThreadAllocatedBytes(id);
+		
+		int vertexes = mesh.length / 3;
+		int triangles = vertexes / 3;
+		double perVertex = (double) (after - before) / vertexes;
+		System.out.println(triangles + " triangles, " + (after - before) + " bytes allocated, " + perVertex + " bytes per vertex");
+		
+		if (triangles < TRIANGLES) {
+			throw new AssertionError("field made only " + triangles + " triangles");
+		}
+		if (perVertex > CEILING) {
+			throw new AssertionError("allocated " + perVertex + " bytes per vertex, more than " + CEILING);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.wordsaretoys.soar;
+
+/**
+ * measures point sampling throughput of Field.get()
+ * for each interpolation mode
+ * 
+ * REFERENCE times a copy of get() as it was before the
+ * modes were added, with seven calls to Space.cerp().
+ * 
+ * pass a mode name (COSINE, LINEAR, QUINTIC, TABLE, REFERENCE) to
+ * time that mode alone; the JIT tunes get() for whichever
+ * mode it sees first, so modes timed in one run after
+ * another can skew each other. with no arguments, all
+ * modes are timed in turn.
+ * 
+ * runs on a desktop JVM, with android.jar on the classpath.
+ * 
+ * @author chris
+ *
+ */
+public class InterpolationBenchmark {
+	
+	final static String[] NAMES = { "COSINE", "LINEAR", "QUINTIC", "TABLE", "REFERENCE" };
+	final static int SAMPLES = 4000000;
+	final static int SIZE = 64;
+	final static double XP = 0.37, YP = 0.41, ZP = 0.43;
+	
+	public static void main(String[] args) {
+		Field field = new Field(SIZE, SIZE, SIZE, 1, XP, YP, ZP);
+		Pattern.randomize(field, 1, 0, 1);
+		
+		// random sample points, drawn up front
+		Random rng = new Random(2);
+		double[] p = new double[SAMPLES * 3];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = rng.get(-1000, 1000);
+		}
+		
+		for (int m = 0; m < NAMES.length; m++) {
+			if (args.length > 0 && !args[0].equalsIgnoreCase(NAMES[m])) {
+				continue;
+			}
+			boolean ref = (m == NAMES.length - 1);
+			field.mode = ref ? Space.COSINE : m;
+			for (int pass = 0; pass < 5; pass++) {
+				double s = 0;
+				long t0 = System.nanoTime();
+				if (ref) {
+					for (int i = 0; i < p.length; i += 3) {
+						s += reference(field.data, p[i], p[i + 1], p[i + 2]);
+					}
+				} else {
+					for (int i = 0; i < p.length; i += 3) {
+						s += field.get(p[i], p[i + 1], p[i + 2]);
+					}
+				}
+				long t1 = System.nanoTime();
+				System.out.printf("%-8s %6.2f M samples/s (sum %.3f)%n", NAMES[m], SAMPLES / ((t1 - t0) / 1e3), s);
+			}
+		}
+	}
+	
+	/**
+	 * Field.get() as it was before interpolation modes
+	 */
+	static double reference(double[] data, double x, double y, double z) {
+		int area = SIZE * SIZE;
+		
+		double xf = (XP * x) % SIZE;
+		if (xf < 0) {
+			xf += SIZE;
+		}
+		int xi0 = (int) Math.floor(xf);
+		double mux = xf - xi0;
+
+		double yf = (YP * y) % SIZE;
+		if (yf < 0) {
+			yf += SIZE;
+		}
+		int yi0 = (int) Math.floor(yf);
+		double muy = yf - yi0;
+
+		double zf = (ZP * z) % SIZE;
+		if (zf < 0) {
+			zf += SIZE;
+		}
+		int zi0 = (int) Math.floor(zf);
+		double muz = zf - zi0;
+
+		int xi1 = (xi0 + 1) % SIZE;
+		int yi1 = (yi0 + 1) % SIZE;
+		int zi1 = (zi0 + 1) % SIZE;
+		
+		int y0m = yi0 * SIZE;
+		int y1m = yi1 * SIZE;
+		int z0m = zi0 * area;
+		int z1m = zi1 * area;
+
+		double i1, i2, i3, i4;
+		i1 = Space.cerp(data[xi0 + y0m + z0m], data[xi0 + y0m + z1m], muz);
+		i2 = Space.cerp(data[xi0 + y1m + z0m], data[xi0 + y1m + z1m], muz);
+		i3 = Space.cerp(i1, i2, muy);
+
+		i1 = Space.cerp(data[xi1 + y0m + z0m], data[xi1 + y0m + z1m], muz);
+		i2 = Space.cerp(data[xi1 + y1m + z0m], data[xi1 + y1m + z1m], muz);
+		i4 = Space.cerp(i1, i2, muy);
+		
+		return Space.cerp(i3, i4, mux);
+	}
+}
@@ -0,0 +1,81 @@
+package com.wordsaretoys.soar;
+
+/**
+ * measures sampling throughput of a field larger than the
+ * cache, for each storage type
+ * 
+ * two patterns are timed: point samples at random, where
+ * each sample is likely a cache miss whatever the storage,
+ * and a grid sweep through the whole field, which streams
+ * the bitmap and so depends on its size in bytes.
+ * 
+ * pass a storage type name (DOUBLE, FLOAT, BYTE, SHORT) to
+ * time that type alone, and optionally the field size (the
+ * default, 256, needs 128MB of heap for doubles).
+ * 
+ * on x86 hosts with AVX-512, the code C2 emits for the random
+ * pattern swings by 2x from one build to the next, whatever
+ * the storage. pass -XX:UseAVX=2 to compare types fairly.
+ * 
+ * runs on a desktop JVM, with android.jar on the classpath.
+ * 
+ * @author chris
+ *
+ */
+public class QuantizedBenchmark {
+	
+	final static String[] NAMES = { "DOUBLE", "FLOAT", "BYTE", "SHORT" };
+	final static int[] TYPES = { Space.DOUBLE, Space.FLOAT, Space.BYTE, Space.SHORT };
+	final static int SAMPLES = 2000000;
+	
+	public static void main(String[] args) {
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		
+		Random rng = new Random(2);
+		double[] p = new double[SAMPLES * 3];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = rng.get(0, n);
+		}
+		double[] row = new double[n * n];
+		
+		for (int t = 0; t < NAMES.length; t++) {
+			if (args.length > 0 && !args[0].equalsIgnoreCase(NAMES[t])) {
+				continue;
+			}
+			Field field = new Field(n, n, n, 1, 1, 1, 1, TYPES[t]);
+			field.mode = Space.LINEAR;
+			Pattern.randomize(field, 1, 0, 1);
+			
+			for (int pass = 0; pass < 3; pass++) {
+				double s = 0;
+				long t0 = System.nanoTime();
+				for (int i = 0; i < p.length; i += 3) {
+					s += field.get(p[i], p[i + 1], p[i + 2]);
+				}
+				long t1 = System.nanoTime();
+				// one plane of constant z at a time, in storage order
+				for (int z = 0; z < n; z++) {
+					field.get(row, 0, 0.5, 0.5, z + 0.5, 1, 1, 0, n, n, 1);
+					s += row[0];
+				}
+				long t2 = System.nanoTime();
+				System.out.printf("%-6s %4d^3 (%5.1f MB): random %6.2f M samples/s, sweep %6.2f M samples/s (sum %.1f)%n",
+						NAMES[t], n, field.length * bytes(TYPES[t]) / 1048576.0,
+						SAMPLES / ((t1 - t0) / 1e3), (double) field.length / ((t2 - t1) / 1e3), s);
+			}
+		}
+	}
+	
+	static int bytes(int type) {
+		switch (type) {
+		case Space.FLOAT:
+			return 4;
+		case Space.BYTE:
+			return 1;
+		case Space.SHORT:
+			return 2;
+		default:
+			return 8;
+		}
+	}
+}
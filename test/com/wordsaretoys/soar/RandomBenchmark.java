@@ -0,0 +1,92 @@
+package com.wordsaretoys.soar;
+
+/**
+ * compares draws from Random against the Java generator
+ * it used to wrap, alone and driving Pattern.walk()
+ * 
+ * the Java generator is reached through a subclass that
+ * hands every draw to a java.util.Random, as the old
+ * class did. draws are first checked for uniformity.
+ * 
+ * pass "soar" or "java" to time one generator alone, as
+ * the JIT tunes the call sites for the first it sees.
+ * 
+ * runs on a desktop JVM, with android.jar on the classpath.
+ * 
+ * @author chris
+ *
+ */
+public class RandomBenchmark {
+	
+	final static int DRAWS = 50000000;
+	final static int BINS = 10;
+	
+	/**
+	 * draws from the Java generator, as the old class did
+	 */
+	static class JavaRandom extends Random {
+		
+		private static final long serialVersionUID = 1L;
+		
+		java.util.Random rng;
+		
+		public JavaRandom(long seed) {
+			super(seed);
+			rng = new java.util.Random(seed);
+		}
+		
+		public long nextLong() {
+			return rng.nextLong();
+		}
+		
+		protected int next(int bits) {
+			return rng.nextInt() >>> (32 - bits);
+		}
+		
+		public double nextDouble() {
+			return rng.nextDouble();
+		}
+	}
+	
+	public static void main(String[] args) {
+		String only = args.length > 0 ? args[0] : "";
+		
+		// draws must fall evenly into bins
+		Random rng = new Random(2);
+		int[] bins = new int[BINS];
+		int n = 1000000;
+		for (int i = 0; i < n; i++) {
+			bins[(int)(rng.get() * BINS)]++;
+		}
+		for (int i = 0; i < BINS; i++) {
+			if (Math.abs(bins[i] - n / BINS) > 1500) {
+				throw new AssertionError("bin " + i + " holds " + bins[i] + " of " + n);
+			}
+		}
+		
+		String[] names = { "soar", "java" };
+		for (int g = 0; g < 2; g++) {
+			if (only.length() > 0 && !only.equalsIgnoreCase(names[g])) {
+				continue;
+			}
+			for (int pass = 0; pass < 5; pass++) {
+				rng = (g == 0) ? new Random(3) : new JavaRandom(3);
+				double s = 0;
+				long t0 = System.nanoTime();
+				for (int i = 0; i < DRAWS; i++) {
+					s += rng.get(-1, 1);
+				}
+				long t1 = System.nanoTime();
+				
+				Surface surf = new Surface(512, 512, 1, 1, 1);
+				rng = (g == 0) ? new Random(3) : new JavaRandom(3);
+				long t2 = System.nanoTime();
+				Pattern.walk(surf, rng, 8, 0.02, 1, 0.25, 0.25, 0.25, 0.25);
+				long t3 = System.nanoTime();
+				
+				System.out.printf("%-5s %7.1f M draws/s, walk %5.1f ms (sum %.3f)%n",
+						names[g], DRAWS / ((t1 - t0) / 1e3), (t3 - t2) / 1e6, s);
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.wordsaretoys.soar;
+
+import java.util.ArrayList;
+
+/**
+ * compares SurfaceNet with CubeMarch on the same field
+ * 
+ * both extract a sphere from the same lattice, into
+ * indexed meshes. reports triangles per second, triangles
+ * per unit of surface area, and the share of slivers:
+ * triangles with an angle under 10 degrees.
+ * 
+ * runs on a desktop JVM, with android.jar on the classpath.
+ * 
+ * @author chris
+ *
+ */
+public class SurfaceNetBenchmark {
+	
+	final static double RADIUS = 40;
+	final static int REPS = 10;
+	
+	public static void main(String[] args) {
+		CubeMarch march = new CubeMarch() {
+			public double field(double x, double y, double z) {
+				return Math.sqrt(x * x + y * y + z * z);
+			}
+		};
+		SurfaceNet net = new SurfaceNet() {
+			public double field(double x, double y, double z) {
+				return Math.sqrt(x * x + y * y + z * z);
+			}
+		};
+		Vector start = new Vector(-RADIUS - 2, -RADIUS - 2, -RADIUS - 2);
+		Vector finish = new Vector(RADIUS + 2, RADIUS + 2, RADIUS + 2);
+		double area = 4 * Math.PI * RADIUS * RADIUS;
+		
+		for (int pass = 0; pass < 3; pass++) {
+			long t0 = System.nanoTime();
+			long mt = 0;
+			for (int r = 0; r < REPS; r++) {
+				mt = triangles(march.runIndexed(start, finish, 1, RADIUS));
+			}
+			long t1 = System.nanoTime();
+			long nt = 0;
+			for (int r = 0; r < REPS; r++) {
+				nt = triangles(net.run(start, finish, 1, RADIUS));
+			}
+			long t2 = System.nanoTime();
+			
+			report("CubeMarch ", mt, (t1 - t0) / REPS, area, slivers(march.runIndexed(start, finish, 1, RADIUS)));
+			report("SurfaceNet", nt, (t2 - t1) / REPS, area, slivers(net.run(start, finish, 1, RADIUS)));
+		}
+	}
+	
+	static long triangles(ArrayList<Mesh> meshes) {
+		long n = 0;
+		for (Mesh m : meshes) {
+			n += m.indexLength / 3;
+		}
+		return n;
+	}
+	
+	static double slivers(ArrayList<Mesh> meshes) {
+		double limit = Math.cos(Math.toRadians(10));
+		long n = 0, s = 0;
+		for (Mesh m : meshes) {
+			for (int t = 0; t < m.indexLength; t += 3, n++) {
+				for (int e = 0; e < 3; e++) {
+					int a = (m.indexData.get(t + e) & 0xffff) * 3;
+					int b = (m.indexData.get(t + (e + 1) % 3) & 0xffff) * 3;
+					int c = (m.indexData.get(t + (e + 2) % 3) & 0xffff) * 3;
+					double ux = m.data.get(b) - m.data.get(a), uy = m.data.get(b + 1) - m.data.get(a + 1), uz = m.data.get(b + 2) - m.data.get(a + 2);
+					double vx = m.data.get(c) - m.data.get(a), vy = m.data.get(c + 1) - m.data.get(a + 1), vz = m.data.get(c + 2) - m.data.get(a + 2);
+					double d = Math.sqrt((ux * ux + uy * uy + uz * uz) * (vx * vx + vy * vy + vz * vz));
+					if (d == 0 || (ux * vx + uy * vy + uz * vz) / d > limit) {
+						s++;
+						break;
+					}
+				}
+			}
+		}
+		return (double) s / n;
+	}
+	
+	static void report(String name, long triangles, long nanos, double area, double slivers) {
+		System.out.printf("%s %8d triangles, %6.2f ms, %6.2f M triangles/s, %5.3f triangles per unit area, %4.1f%% slivers%n",
+				name, triangles, nanos / 1e6, triangles / (nanos / 1e3), triangles / area, slivers * 100);
+	}
+}
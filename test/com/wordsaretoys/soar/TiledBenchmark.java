@@ -0,0 +1,93 @@
+package com.wordsaretoys.soar;
+
+/**
+ * compares sampling of a field stored in rows against
+ * the same field stored in tiles, for three patterns
+ * 
+ * random point samples, where either layout misses the
+ * cache on nearly every sample; planes of rows along x,
+ * which suit the row layout; and planes of rows along z,
+ * as CubeMarch samples a volume, which stride through the
+ * row layout a plane apart on every step. both layouts
+ * must give identical values; this is checked first.
+ * 
+ * pass "rows" or "tiled" to time one layout alone, and
+ * optionally the field size (default 256).
+ * 
+ * runs on a desktop JVM, with android.jar on the classpath.
+ * 
+ * @author chris
+ *
+ */
+public class TiledBenchmark {
+	
+	final static String[] NAMES = { "rows", "tiled" };
+	final static int SAMPLES = 2000000;
+	
+	public static void main(String[] args) {
+		String only = args.length > 0 ? args[0] : "";
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		
+		Field[] fields = new Field[2];
+		for (int l = 0; l < 2; l++) {
+			if (only.length() > 0 && !only.equalsIgnoreCase(NAMES[l])) {
+				continue;
+			}
+			fields[l] = new Field(n, n, n, 1, 1, 1, 1, Space.FLOAT | (l == 1 ? Space.TILED : 0));
+			fields[l].mode = Space.LINEAR;
+			Pattern.randomize(fields[l], 1, 0, 1);
+		}
+		
+		Random rng = new Random(2);
+		double[] p = new double[SAMPLES * 3];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = rng.get(0, n);
+		}
+		double[] row = new double[n];
+		
+		// both layouts must agree bit for bit
+		if (fields[0] != null && fields[1] != null) {
+			for (int i = 0; i < 300000; i += 3) {
+				double a = fields[0].get(p[i], p[i + 1], p[i + 2]);
+				double b = fields[1].get(p[i], p[i + 1], p[i + 2]);
+				if (a != b) {
+					throw new AssertionError("layouts differ at " + p[i] + ", " + p[i + 1] + ", " + p[i + 2] + ": " + a + " != " + b);
+				}
+			}
+		}
+		
+		for (int l = 0; l < 2; l++) {
+			Field field = fields[l];
+			if (field == null) {
+				continue;
+			}
+			for (int pass = 0; pass < 3; pass++) {
+				double s = 0;
+				long t0 = System.nanoTime();
+				for (int i = 0; i < p.length; i += 3) {
+					s += field.get(p[i], p[i + 1], p[i + 2]);
+				}
+				long t1 = System.nanoTime();
+				// planes of constant z, rows along x
+				for (int z = 0; z < n; z++) {
+					for (int y = 0; y < n; y++) {
+						field.get(row, 0, 0.5, y + 0.5, z + 0.5, 1, 0, 0, n, 1, 1);
+						s += row[0];
+					}
+				}
+				long t2 = System.nanoTime();
+				// planes of constant x, rows along z
+				for (int x = 0; x < n; x++) {
+					for (int y = 0; y < n; y++) {
+						field.get(row, 0, x + 0.5, y + 0.5, 0.5, 0, 0, 1, 1, 1, n);
+						s += row[0];
+					}
+				}
+				long t3 = System.nanoTime();
+				double m = (double) n * n * n;
+				System.out.printf("%-5s %4d^3: random %6.2f, x rows %6.2f, z rows %6.2f M samples/s (sum %.1f)%n",
+						NAMES[l], n, SAMPLES / ((t1 - t0) / 1e3), m / ((t2 - t1) / 1e3), m / ((t3 - t2) / 1e3), s);
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.wordsaretoys.soar;
+
+/**
+ * compares point sampling of a power-of-two field with
+ * its specialized wrapping (masks and a plain int cast)
+ * against the general path (modulus), on the same field
+ * 
+ * the general path is forced by clearing the field's
+ * pow2 flag. both paths must give identical values; the
+ * benchmark checks this before timing anything.
+ * 
+ * pass "pow2" or "generic" to time one path alone, as the
+ * JIT tunes get() for the first path it sees, and an
+ * interpolation mode name (default LINEAR).
+ * 
+ * runs on a desktop JVM, with android.jar on the classpath.
+ * 
+ * @author chris
+ *
+ */
+public class WrapBenchmark {
+	
+	final static int SAMPLES = 4000000;
+	
+	public static void main(String[] args) {
+		String only = args.length > 0 ? args[0] : "";
+		int mode = (args.length > 1 && args[1].equalsIgnoreCase("COSINE")) ? Space.COSINE : Space.LINEAR;
+		
+		Field field = new Field(64, 64, 64, 1, 0.37, 0.41, 0.43);
+		Pattern.randomize(field, 1, 0, 1);
+		field.mode = mode;
+		
+		Random rng = new Random(2);
+		double[] p = new double[SAMPLES * 3];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = rng.get(-1e7, 1e7);
+		}
+		
+		// both paths must agree bit for bit
+		for (int i = 0; i < 300000; i += 3) {
+			field.pow2 = true;
+			double a = field.get(p[i], p[i + 1], p[i + 2]);
+			field.pow2 = false;
+			double b = field.get(p[i], p[i + 1], p[i + 2]);
+			if (a != b) {
+				throw new AssertionError("paths differ at " + p[i] + ", " + p[i + 1] + ", " + p[i + 2] + ": " + a + " != " + b);
+			}
+		}
+		
+		String[] names = { "pow2", "generic" };
+		for (int n = 0; n < 2; n++) {
+			if (only.length() > 0 && !only.equalsIgnoreCase(names[n])) {
+				continue;
+			}
+			field.pow2 = (n == 0);
+			for (int pass = 0; pass < 5; pass++) {
+				double s = 0;
+				long t0 = System.nanoTime();
+				for (int i = 0; i < p.length; i += 3) {
+					s += field.get(p[i], p[i + 1], p[i + 2]);
+				}
+				long t1 = System.nanoTime();
+				System.out.printf("%-8s %6.2f M samples/s (sum %.3f)%n", names[n], SAMPLES / ((t1 - t0) / 1e3), s);
+			}
+		}
+	}
+}